@@ -0,0 +1,176 @@
+package uml_robotics.robotnexus;
+
+import java.util.UUID;
+
+/**
+ * Walks the GAP AD structures of a raw scan record in place.
+ * One instance is reused for every record handled by a single thread -> parse() allocates nothing
+ * and the results of the most recent parse are read back through the getters.
+ */
+public class AdvertisementParser {
+    // GAP type holding an incomplete list of 128 bit service uuids
+    private static final int GAP_TYPE_INCOMPLETE_UUID_128 = 0x06;
+    // GAP type holding manufacturer specific data (visibility flag and status checksum)
+    private static final int GAP_TYPE_MANUFACTURER_DATA = 0xFF;
+    // offset from the GAP type byte to the flags byte (after the 2 byte company id)
+    private static final int FLAGS_OFFSET = 3;
+    // offset from the GAP type byte to the first byte of the status checksum
+    private static final int CHECKSUM_OFFSET = 4;
+
+    private final long uuidMostSigBits; // upper half of the robot uuid
+    private final long uuidLeastSigBits; // lower half of the robot uuid
+
+    /*
+     * results of the last call to parse()
+     */
+    private boolean robot;
+    private boolean visible;
+    private boolean checksumFound;
+    private long checksum;
+
+    public AdvertisementParser(UUID uuidOfInterest) {
+        this.uuidMostSigBits = uuidOfInterest.getMostSignificantBits();
+        this.uuidLeastSigBits = uuidOfInterest.getLeastSignificantBits();
+    }
+
+    /**
+     * @param scanRecord is the raw advertisement payload
+     * @return true if the 0x06 structure carries the robot uuid
+     */
+    public boolean parse(byte[] scanRecord) {
+        robot = false;
+        visible = true; // no 0xFF structure means visible
+        checksumFound = false;
+        checksum = 0;
+
+        boolean uuidStructureSeen = false;
+        boolean manufacturerStructureSeen = false;
+
+        // Keeping track of which byte we're on
+        int index = 0;
+
+        // Loop through whole payload
+        while (index < scanRecord.length) {
+
+            int lengthOfGAPStructure = scanRecord[index];
+
+            // payload no longer contains any ad structures (or is malformed)
+            if (lengthOfGAPStructure <= 0) {
+                break;
+            }
+            index++;
+
+            // structure is cut off or no specified GAP type was used
+            int end = index + lengthOfGAPStructure;
+            if (end > scanRecord.length || scanRecord[index] == 0) {
+                break;
+            }
+
+            int gapType = scanRecord[index] & 0xFF;
+
+            if (gapType == GAP_TYPE_INCOMPLETE_UUID_128 && !uuidStructureSeen) {
+                uuidStructureSeen = true;
+                robot = matchesUuid(scanRecord, index + 1, end);
+
+            } else if (gapType == GAP_TYPE_MANUFACTURER_DATA && !manufacturerStructureSeen) {
+                manufacturerStructureSeen = true;
+
+                // 0 = visible, 1 = not visible
+                if (index + FLAGS_OFFSET < end) {
+                    visible = (scanRecord[index + FLAGS_OFFSET] & 0x01) == 0;
+                }
+
+                // remaining bytes are the checksum in big endian
+                if (index + CHECKSUM_OFFSET < end) {
+                    checksumFound = true;
+                    for (int i = index + CHECKSUM_OFFSET; i < end; i++) {
+                        checksum = (checksum << 8) | (scanRecord[i] & 0xFF);
+                    }
+                }
+            }
+
+            index = end;
+        }
+        return robot;
+    }
+
+    /**
+     * only looks for the robot uuid and keeps no results -> safe to call from any thread
+     * @param scanRecord is the raw advertisement payload
+     * @return true if the 0x06 structure carries the robot uuid
+     */
+    public boolean advertisesUuid(byte[] scanRecord) {
+        int index = 0;
+
+        while (index < scanRecord.length) {
+
+            int lengthOfGAPStructure = scanRecord[index];
+            if (lengthOfGAPStructure <= 0) {
+                return false;
+            }
+            index++;
+
+            int end = index + lengthOfGAPStructure;
+            if (end > scanRecord.length || scanRecord[index] == 0) {
+                return false;
+            }
+
+            if ((scanRecord[index] & 0xFF) == GAP_TYPE_INCOMPLETE_UUID_128) {
+                return matchesUuid(scanRecord, index + 1, end);
+            }
+
+            index = end;
+        }
+        return false;
+    }
+
+    /**
+     * uuid is sent little endian so the last 16 bytes of the structure are read back to front
+     * @param start first data byte of the structure
+     * @param end one past the last data byte of the structure
+     */
+    private boolean matchesUuid(byte[] scanRecord, int start, int end) {
+        if (end - start < 16) {
+            return false;
+        }
+
+        long mostSigBits = 0;
+        long leastSigBits = 0;
+        for (int i = end - 1; i >= end - 8; i--) {
+            mostSigBits = (mostSigBits << 8) | (scanRecord[i] & 0xFF);
+        }
+        for (int i = end - 9; i >= end - 16; i--) {
+            leastSigBits = (leastSigBits << 8) | (scanRecord[i] & 0xFF);
+        }
+
+        return mostSigBits == uuidMostSigBits && leastSigBits == uuidLeastSigBits;
+    }
+
+    /**
+     * @return true if the last parsed record advertised the robot uuid
+     */
+    public boolean isRobot() {
+        return robot;
+    }
+
+    /**
+     * @return true if the last parsed record says the robot should be displayed to the user
+     */
+    public boolean isVisible() {
+        return visible;
+    }
+
+    /**
+     * @return true if the last parsed record carried a status checksum
+     */
+    public boolean hasChecksum() {
+        return checksumFound;
+    }
+
+    /**
+     * @return status checksum of the last parsed record
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+}
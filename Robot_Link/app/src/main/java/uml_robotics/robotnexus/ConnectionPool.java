@@ -0,0 +1,124 @@
+package uml_robotics.robotnexus;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded set of open robot connections keyed by mac address.
+ * Several le links can be open at once, so robots are synced side by side instead of one at a
+ * time. A slot is held from the moment we start connecting until the link is closed.
+ */
+public class ConnectionPool<T> {
+    private final LinkedHashMap<String, T> connections = new LinkedHashMap<>(); // address -> connection
+    private final ReentrantLock lock = new ReentrantLock(); // guards everything below
+    private final int capacity; // most connections open at once
+
+    /*
+     * metrics
+     */
+    private long openedCount = 0; // connections handed a slot
+    private long closedCount = 0; // connections that gave their slot back
+    private int peakSize = 0; // most connections open at once so far
+
+    /**
+     * @param capacity is the most connections open at once
+     */
+    public ConnectionPool(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * @param address is the mac address of the robot
+     * @param connection holds the state of the link to it
+     * @return false if the pool is full or the robot already has a connection
+     */
+    public boolean open(String address, T connection) {
+        lock.lock();
+        try {
+            if (connections.size() >= capacity || connections.containsKey(address)) {
+                return false;
+            }
+            connections.put(address, connection);
+            openedCount++;
+            if (connections.size() > peakSize) {
+                peakSize = connections.size();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param address is the mac address of the robot
+     * @return the connection that held the slot or null if there was none
+     */
+    public T close(String address) {
+        lock.lock();
+        try {
+            T connection = connections.remove(address);
+            if (connection != null) {
+                closedCount++;
+            }
+            return connection;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param address is the mac address of the robot
+     * @return the connection to the robot or null if it isn't connected
+     */
+    public T get(String address) {
+        lock.lock();
+        try {
+            return connections.get(address);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean contains(String address) {
+        lock.lock();
+        try {
+            return connections.containsKey(address);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the open connections, oldest first
+     */
+    public List<T> getAll() {
+        lock.lock();
+        try {
+            return new ArrayList<T>(connections.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isFull() {
+        lock.lock();
+        try {
+            return connections.size() >= capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "open: " + connections.size() + "/" + capacity + ", peak: " + peakSize
+                    + ", opened: " + openedCount + ", closed: " + closedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package uml_robotics.robotnexus;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Decides which robot gets the next connection.
+ * Robots that need a sync are offered as candidates while scan callbacks come in, and the best one
+ * is handed out once the gather window is over. Candidates are ranked by:
+ * pending reply, help/dangerous state, changed checksum, time since last sync and smoothed rssi.
+ * Also records time-to-fresh per robot: from the moment it was seen to be stale until its sync.
+ * What it knows about a robot is kept only while the robot is in range.
+ */
+public class ConnectionScheduler {
+    // ms to collect candidates before choosing -> replies don't wait
+    private static final long GATHER_WINDOW = 300;
+    // ms a candidate stays without being heard again
+    private static final long CANDIDATE_TTL = 10 * 1000;
+
+    /**
+     * a robot waiting for a connection
+     */
+    public static class Candidate {
+        private BluetoothDevice device;
+        private boolean replyPending; // a reply to this robot is in the reply queue
+        private boolean urgent; // robot last said it needs help or is dangerous
+        private boolean checksumChanged; // advertised checksum differs from ours (or robot is new)
+        private int rssi; // smoothed rssi
+        private boolean visible; // visibility flag from the latest advertisement
+        private long checksum; // status checksum from the latest advertisement, -1 if none
+        private long offeredAt; // time this candidate was first offered
+        private long lastHeard; // time of the latest advertisement
+
+        public BluetoothDevice getDevice() {
+            return device;
+        }
+
+        public int getRssi() {
+            return rssi;
+        }
+
+        public boolean isVisible() {
+            return visible;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+    }
+
+    /**
+     * time-to-fresh of a single robot
+     */
+    private static class Freshness {
+        private long count = 0;
+        private long total = 0;
+        private long max = 0;
+        private long last = 0;
+    }
+
+    private final HashMap<String, Candidate> candidates = new HashMap<>(); // address -> candidate
+    private final HashMap<String, Long> staleSince = new HashMap<>(); // address -> time it went stale
+    private final HashMap<String, Long> lastSync = new HashMap<>(); // address -> time of last sync
+    private final HashMap<String, Freshness> freshness = new HashMap<>(); // address -> time-to-fresh
+
+    /**
+     * adds a robot that needs a sync or refreshes what we know about it
+     * @param checksum is the advertised status checksum, -1 if the robot sent none
+     */
+    public synchronized void offer(BluetoothDevice device, boolean replyPending, boolean urgent,
+                                   boolean checksumChanged, int rssi, boolean visible, long checksum) {
+        long now = System.currentTimeMillis();
+        String address = device.getAddress();
+
+        Candidate candidate = candidates.get(address);
+        if (candidate == null) {
+            candidate = new Candidate();
+            candidate.offeredAt = now;
+            candidates.put(address, candidate);
+        }
+        candidate.device = device;
+        candidate.replyPending = replyPending;
+        candidate.urgent = urgent;
+        candidate.checksumChanged = checksumChanged;
+        candidate.rssi = rssi;
+        candidate.visible = visible;
+        candidate.checksum = checksum;
+        candidate.lastHeard = now;
+
+        if (!staleSince.containsKey(address)) {
+            staleSince.put(address, now);
+        }
+    }
+
+    /**
+     * @return ms until the best candidate should be chosen. 0 if it's time now,
+     * Long.MAX_VALUE if there are no candidates
+     */
+    public synchronized long getTimeUntilReady() {
+        long now = System.currentTimeMillis();
+        long readyAt = Long.MAX_VALUE;
+        for (Candidate candidate : candidates.values()) {
+            if (candidate.replyPending) {
+                return 0;
+            }
+            readyAt = Math.min(readyAt, candidate.offeredAt + GATHER_WINDOW);
+        }
+        return (readyAt == Long.MAX_VALUE ? readyAt : Math.max(0, readyAt - now));
+    }
+
+    /**
+     * @return the best candidate, removed from the candidates, or null if there is none
+     */
+    public synchronized Candidate poll() {
+        long now = System.currentTimeMillis();
+        Candidate best = null;
+
+        Iterator<Candidate> iterator = candidates.values().iterator();
+        while (iterator.hasNext()) {
+            Candidate candidate = iterator.next();
+
+            // robot walked away
+            if (now - candidate.lastHeard > CANDIDATE_TTL) {
+                iterator.remove();
+                continue;
+            }
+
+            if (best == null || compare(candidate, best) > 0) {
+                best = candidate;
+            }
+        }
+
+        if (best != null) {
+            candidates.remove(best.device.getAddress());
+        }
+        return best;
+    }
+
+    /**
+     * @return > 0 if a should be connected to before b
+     */
+    private int compare(Candidate a, Candidate b) {
+        if (a.replyPending != b.replyPending) {
+            return (a.replyPending ? 1 : -1);
+        }
+        if (a.urgent != b.urgent) {
+            return (a.urgent ? 1 : -1);
+        }
+        if (a.checksumChanged != b.checksumChanged) {
+            return (a.checksumChanged ? 1 : -1);
+        }
+
+        // robot that has gone longest without a sync first (never synced = longest)
+        long syncA = getLastSync(a.device.getAddress());
+        long syncB = getLastSync(b.device.getAddress());
+        if (syncA != syncB) {
+            return (syncA < syncB ? 1 : -1);
+        }
+
+        return a.rssi - b.rssi;
+    }
+
+    private long getLastSync(String address) {
+        Long time = lastSync.get(address);
+        return (time == null ? 0 : time);
+    }
+
+    /**
+     * called once a robot's update (or ack) has been received
+     * @param address is the mac address of the robot
+     * @return time-to-fresh (ms) of this sync or -1 if the robot wasn't known to be stale
+     */
+    public synchronized long synced(String address) {
+        long now = System.currentTimeMillis();
+        lastSync.put(address, now);
+        candidates.remove(address);
+
+        Long since = staleSince.remove(address);
+        if (since == null) {
+            return -1;
+        }
+
+        long timeToFresh = now - since;
+        Freshness stats = freshness.get(address);
+        if (stats == null) {
+            stats = new Freshness();
+            freshness.put(address, stats);
+        }
+        stats.count++;
+        stats.total += timeToFresh;
+        stats.last = timeToFresh;
+        if (timeToFresh > stats.max) {
+            stats.max = timeToFresh;
+        }
+        return timeToFresh;
+    }
+
+    /**
+     * forgets robots that left range -> their last sync and time-to-fresh go with them
+     * @param inRange is the mac addresses of the robots still in range
+     */
+    public synchronized void retainOnly(Collection<String> inRange) {
+        HashSet<String> addresses = new HashSet<>(inRange);
+        candidates.keySet().retainAll(addresses);
+        staleSince.keySet().retainAll(addresses);
+        lastSync.keySet().retainAll(addresses);
+        freshness.keySet().retainAll(addresses);
+    }
+
+    @Override
+    public synchronized String toString() {
+        String result = "candidates: " + candidates.size() + "; time-to-fresh(ms) ";
+        for (String address : freshness.keySet()) {
+            Freshness stats = freshness.get(address);
+            result += address + " last: " + stats.last + " avg: " + (stats.total / stats.count)
+                    + " max: " + stats.max + "; ";
+        }
+        return result;
+    }
+}
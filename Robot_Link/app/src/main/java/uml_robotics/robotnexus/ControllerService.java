@@ -26,6 +26,7 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.ParcelUuid;
 import android.util.Base64;
 import android.util.Log;
 
@@ -42,6 +43,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Array;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -51,14 +53,19 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.zip.CRC32;
 
 import static java.lang.Thread.sleep;
 
@@ -73,9 +80,11 @@ public class ControllerService extends Service {
     private Handler serviceHandler; // handler for posting to looper
     private static ArrayList<Robot> theModel; // the model of the system -> only manipulate through its methods
     private static ReentrantLock theModelLock; // keeps mutual exclusion of model tampering
+    // robot id (mac address) -> slot of that robot in theModel
+    private static HashMap<String, Integer> theModelIndex;
+    // smoothed rssi of every robot heard, kept in order nearest first
+    private static ProximityRanking proximityRanking;
     private Intent notifViewIntent; // intent used to start notification ui service
-    private ArrayList<Robot> model; // controller's copy of the model
-    private ReentrantLock modelLock; // mutex for tampering with copy of the model
     private Boolean btInitOff = false; //used for checking initial state of user's bluetooth
     private BluetoothAdapter btAdapter;  //Adapter used for most bluetoothy stuff
     private BluetoothLeScanner leScanner; // used for scanning
@@ -85,64 +94,113 @@ public class ControllerService extends Service {
     // callback for gattserver events
     private BluetoothGattCallback btGattCallback;
     private boolean isScanning = false; //for tracking if app is scanning or not
+    // true if the bt controller matches our scan filters itself
+    private boolean offloadedFiltering = false;
+    // pre-filters scan results on the binder thread when the controller can't filter for us
+    private AdvertisementParser scanPrefilter;
+    // scan results delivered to scanCallback
+    private final AtomicLong scanResultsReceived = new AtomicLong();
+    // scan results dropped by the software pre-filter before reaching HandleScanCallbacks
+    private final AtomicLong scanResultsPrefiltered = new AtomicLong();
+    // true if scan results are delivered in batches instead of one callback per advertisement
+    private boolean batchScanning = false;
+    // ms the controller holds scan results before delivering them as a batch
+    private static final long SCAN_REPORT_DELAY = 1000;
+    private ScanBatchStats scanBatchStats; // sizes and handling times of scan batches
+    private boolean screenOn = true; // batch scanning is only used while the screen is off
+    // picks the scan mode and on/off windows from what the user and robots are doing
+    private ScanScheduler scanScheduler;
+    private ScanScheduler.Profile scanProfile = null; // profile of the running (or last) scan
+    // ends the on-window of a duty-cycled scan
+    private final Runnable endScanWindow = new Runnable() {
+        @Override
+        public void run() {
+            if (isScanning && !connectionPool.isFull()) {
+                leScanner.stopScan(scanCallback);
+                isScanning = false;
+                scanScheduler.radioOff();
+                serviceHandler.postDelayed(startScanWindow, scanScheduler.getOffWindow(scanProfile));
+            }
+        }
+    };
+    // balanced scanning after a status change is over -> drop to the next profile
+    private final Runnable recentChangeOver = new Runnable() {
+        @Override
+        public void run() {
+            updateScanProfile();
+        }
+    };
+    // ends the off-window of a duty-cycled scan
+    private final Runnable startScanWindow = new Runnable() {
+        @Override
+        public void run() {
+            if (!isScanning && !connectionPool.isFull()) {
+                startScanning();
+            }
+        }
+    };
     private UUID uuidOfInterest; //UUID that specifies this is a robot
     private HashMap<String, String> supportedServices;//known services
     private HashMap<String, String> supportedCharas; //known characteristics
-    //Holds bluetooth devices we don't care about
-    private List<BluetoothDevice> rejectedDeviceList = null;
     // holds bluetooth devices identified as robots
     private HashMap<BluetoothDevice, Integer> robotsAsBTDevices;
-    private HashMap<Integer, String> packetsFound = null; // map multi packet reads
-    // used in makeRobot() for reading characteristics and
-    // stopping from finishing until descriptor has been written (because image sends after read request)
-    private BlockingQueue<Integer> makeRobotBlock = null;
-    // lock for sequencing statusReview and readNotifications
-    private ReentrantLock transferLock;
-    // queue for scan callbacks
-    private ArrayList<ScanCallbackPackage> scanCallbackPackages;
-    private ReentrantLock scanCallbackPackagesLock = null; // lock for accessing package queue
+    // newest scan callback per device, waiting for HandleScanCallbacks
+    private ScanMailbox<ScanCallbackPackage> scanCallbackPackages;
     private HandleScanCallbacks handleScanCallbacks; // thread responsible for handling scan callbacks
-    // boolean for stating if we're connected to a robot or not
-    private boolean isConnected = false;
-    private BluetoothGatt currConnectedDevice = null; //current device we are connected to
-    // used for determining when server has stopped notifying
-    private TransferStatusReview statusReview = null;
-    // time stamp updated on each onCharacteristicChanged callback
-    private long notifyTimeStamp;
-    private String strJSON = null; // contains JSON string from server
-    // boolean to let others know if TransferStatusReview is on or not
-    private boolean statusReviewOff = true;
-    private boolean awaitingMissedPackets = false; //used to know if we should expect a missing packet
+    // most robots we sync at once -> each one holds an le link
+    private static final int MAX_CONNECTIONS = 3;
+    // robots we are connected (or connecting) to with the transfer state of each
+    private ConnectionPool<RobotConnection> connectionPool;
+    private TransferStats transferStats; // sync times and what deflate, parity and friends saved
+    // att mtu we ask every robot for -> 244 byte packets
+    private static final int PREFERRED_MTU = 247;
+    // att mtu every robot supports -> 20 byte packets
+    private static final int DEFAULT_MTU = 23;
+    // bytes of each att packet taken by the opcode and handle
+    private static final int ATT_HEADER_SIZE = 3;
+    // notifications that can wait to be read per robot -> two sliding windows
+    private static final int NOTIFICATION_SLOTS = 2 * SlidingWindow.WINDOW_SIZE;
+    // fires idle checks of transfers -> one thread for every robot
+    private final Timer idleTimer = new Timer(true);
+    // capability bits -> robots without a Capabilities characteristic speak the legacy protocol
+    public static final int CAP_SLIDING_WINDOW = 0x01;
+    public static final int CAP_DEFLATE = 0x02; // payload deflated with PayloadDictionary
+    public static final int CAP_DELTA = 0x04; // progression sent as a delta on request
+    public static final int CAP_CONDITIONAL = 0x08; // 0 packets if the sync request hash is current
+    public static final int CAP_BINARY = 0x10; // payloads and replies in WireFormat instead of json
+    public static final int CAP_RESUME = 0x20; // sliding window transfers resume after a disconnect
+    public static final int CAP_FEC = 0x40; // sliding window transfers carry xor parity packets
+    public static final int CAP_TRAILER = 0x80; // payload ends in a crc trailer, re-fetched on mismatch
+    // capabilities this app speaks
+    private static final int SUPPORTED_CAPABILITIES = CAP_SLIDING_WINDOW | CAP_DEFLATE | CAP_DELTA
+            | CAP_CONDITIONAL | CAP_BINARY | CAP_RESUME | CAP_FEC | CAP_TRAILER;
+    // times a payload that fails its trailer is streamed again before we give up on the connection
+    private static final int MAX_REFETCHES = 2;
+    // robots heard louder than this (dBm) get no parity -> they lose too little to pay the airtime
+    private static final int FEC_MAX_RSSI = -75;
+    // robots whose last delta didn't fit our copy -> next sync asks for everything
+    private final Set<String> fullSyncNeeded =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // transfers cut short by a disconnect -> resumed by the next connection to the robot
+    private final TransferCache transferCache = new TransferCache();
+    // packets per wave -> packet numbers are 7 bits
+    private static final int WAVE_SIZE = 128;
+    // ms to wait for a robot to confirm it received our whole reply
+    private static final long REPLY_ACK_TIMEOUT = 10 * 1000;
+    // extra on UPDATE_COMPLETE holding the mac address of the robot whose transfer finished
+    private static final String EXTRA_ADDRESS = "uml_robotics.controller.extra_address";
     private BroadcastReceiver receiver; // listener for controller
-    private ArrayList<byte[]> notificationQueue = null; // queue for holding notification values
-    private ReentrantLock notificationQueueLock = null; // lock for accessing queue
-    private ReadNotifications readNotifications; // thread responsible for reading notifications
     // used to ensure all robots in vicinity get updated once
     private RobotUpdateClock robotUpdateClock;
-    private BlockingQueue<Integer> characteristicWriteBlock = null;
+    // ranks robots that need a sync and picks which one gets the next connection
+    private ConnectionScheduler connectionScheduler;
     // Controller only uses this to ensure notifications are removed on destroy
     private NotificationManager notifManager;
     // queue for replies waiting to be sent back to robot
     private static ArrayList<ReplyPackage> replyQueue = null;
     private static ReentrantLock replyQueueLock = null; // lock for accessing reply queue
-    // boolean that holds the visible value in the advertisement -> is global because no way to pass
-    // to connect and discover callbacks
-    private boolean isCurrRobotVisible = true;
     //holds the date and time of when the app was started
     private static String dateAndTimeOfAppStart = null;
-    //holds current batch of packets being sent to server
-    private HashMap<Integer, byte[]> outgoingPackets;
-
-    /*
-     * characteristics/values of our currently connected robot
-     */
-    private int totalNumOfPackets = -1;
-    private BluetoothGattCharacteristic missingPacketWrite = null;
-    private BluetoothGattCharacteristic totalNumOfPacketsWrite = null;
-    private BluetoothGattCharacteristic packetWrite = null;
-    /*
-     * end fields for currently connected robot
-     */
 
     public ControllerService() {}
 
@@ -154,6 +212,8 @@ public class ControllerService extends Service {
         // make the model and its lock
         theModel = new ArrayList<Robot>();
         theModelLock = new ReentrantLock();
+        theModelIndex = new HashMap<String, Integer>();
+        proximityRanking = new ProximityRanking();
 
         // create the service thread
         serviceLooper = new ServiceLooper();
@@ -212,6 +272,9 @@ public class ControllerService extends Service {
                 //uuidOfInterest = UUID.fromString("0000ec00-0000-1000-8000-00805f9b34fb");
                 //uuidOfInterest = UUID.fromString("00001800-30de-4630-9b59-27228d45bf11");
                 uuidOfInterest = UUID.fromString("11bf458d-2227-599b-3046-de3000180000");
+                scanPrefilter = new AdvertisementParser(uuidOfInterest);
+                scanBatchStats = new ScanBatchStats();
+                scanScheduler = new ScanScheduler();
 
                 //Populating supportedServices and supportedCharas maps
                 supportedServices = new HashMap<String, String>();
@@ -229,42 +292,24 @@ public class ControllerService extends Service {
                 supportedCharas.put("00002a12-30de-4630-9b59-27228d45bf11", "Packet Write");
                 supportedCharas.put("00002a13-30de-4630-9b59-27228d45bf11", "Missing Packet Read");
                 supportedCharas.put("00002a14-30de-4630-9b59-27228d45bf11", "Total Number of Packets");
-
-                //List of rejected bluetooth devices
-                rejectedDeviceList = new ArrayList<BluetoothDevice>();
+                supportedCharas.put("00002a15-30de-4630-9b59-27228d45bf11", "Capabilities");
+                supportedCharas.put("00002a16-30de-4630-9b59-27228d45bf11", "Sync Request");
 
                 // non-connected btDevices(that are robots) with their average rssis
                 robotsAsBTDevices = new HashMap<BluetoothDevice, Integer>();
 
-                // initializing packetFound map for multi packet reads.
-                packetsFound = new HashMap<>();
-
-                // creating a lock for our transfer process
-                transferLock = new ReentrantLock();
-
-                //instantiating block for notify completion wait
-                makeRobotBlock = new ArrayBlockingQueue<>(1);
-
-                //block for writing to server
-                characteristicWriteBlock = new ArrayBlockingQueue<Integer>(1);
-
-                //creating lock for when controller is accessing its own copy of the model
-                modelLock = new ReentrantLock();
-
-                // queue of notifications
-                notificationQueue = new ArrayList<byte[]>();
-
-                // Lock for notification queue
-                notificationQueueLock = new ReentrantLock();
+                // robots we sync at the same time
+                connectionPool = new ConnectionPool<RobotConnection>(MAX_CONNECTIONS);
+                transferStats = new TransferStats();
 
                 // clock to ensure all robots get updated
                 robotUpdateClock = new RobotUpdateClock();
 
-                // create job queue for scan callbacks
-                scanCallbackPackages = new ArrayList<ScanCallbackPackage>();
+                // picks which robot to connect to next
+                connectionScheduler = new ConnectionScheduler();
 
-                //lock for accessing scanCallbackPackages
-                scanCallbackPackagesLock = new ReentrantLock();
+                // create mailbox for scan callbacks
+                scanCallbackPackages = new ScanMailbox<ScanCallbackPackage>();
 
                 // start up handler thread for scan callbacks
                 handleScanCallbacks = new HandleScanCallbacks();
@@ -277,18 +322,43 @@ public class ControllerService extends Service {
                 replyQueueLock = new ReentrantLock();
 
 
-                // used if server misses packets we send to it
-                outgoingPackets = new HashMap<Integer, byte[]>();
-
-
                 //implementing callback startScan()
                 scanCallback = new ScanCallback() {
                     @Override
                     public void onScanResult(int callbackType, ScanResult result) {
-                        scanCallbackPackagesLock.lock();
-                        scanCallbackPackages.add(new ScanCallbackPackage(result.getDevice(),
-                                result.getRssi(), result.getScanRecord().getBytes()));
-                        scanCallbackPackagesLock.unlock();
+                        scanResultsReceived.incrementAndGet();
+
+                        if (!passesPrefilter(result)) {
+                            return;
+                        }
+
+                        // replaces this device's advertisement if one is still waiting
+                        scanCallbackPackages.post(result.getDevice().getAddress(),
+                                new ScanCallbackPackage(result.getDevice(),
+                                        result.getRssi(), result.getScanRecord().getBytes()));
+                    }
+
+                    @Override
+                    public void onBatchScanResults(List<ScanResult> results) {
+                        long startTime = System.nanoTime();
+                        scanResultsReceived.addAndGet(results.size());
+
+                        // keep only the newest result of each device -> results come oldest first
+                        LinkedHashMap<String, ScanCallbackPackage> batch = new LinkedHashMap<>();
+                        HashSet<String> seen = new HashSet<>();
+                        for (int i = results.size() - 1; i >= 0; i--) {
+                            ScanResult result = results.get(i);
+                            String address = result.getDevice().getAddress();
+                            if (!seen.add(address) || !passesPrefilter(result)) {
+                                continue;
+                            }
+                            batch.put(address, new ScanCallbackPackage(result.getDevice(),
+                                    result.getRssi(), result.getScanRecord().getBytes()));
+                        }
+
+                        // whole batch goes to HandleScanCallbacks at once
+                        scanCallbackPackages.postAll(batch);
+                        scanBatchStats.record(results.size(), seen.size(), System.nanoTime() - startTime);
                     }
                 };
 
@@ -326,6 +396,8 @@ public class ControllerService extends Service {
                             @Override
                             public void run() {
 
+                                RobotConnection connection = connectionPool.get(gatt.getDevice().getAddress());
+
                                 // if this disconnect is 133 -> have to close down BT in order
                                 // to close connection down
                                 if (status == 133) {
@@ -334,15 +406,10 @@ public class ControllerService extends Service {
                                     Log.e("onDisconnect", "newState: " + newState);
                                     gatt.disconnect();
                                     gatt.close();
-                                    currConnectedDevice = null;
-                                    isConnected = false;
-                                    // make sure these blocking queues are cleared if we
-                                    // disconnected abruptly
-                                    makeRobotBlock.clear();
-                                    characteristicWriteBlock.clear();
                                     // safety-net
                                     if (btAdapter != null) {
-                                        // resetting BT
+                                        // resetting BT takes every other robot down with it
+                                        closeAllConnections();
                                         btAdapter.disable();
                                         while (btAdapter.isEnabled()) {
                                             try {
@@ -356,27 +423,37 @@ public class ControllerService extends Service {
                                         btAdapter.enable();
                                         robotsAsBTDevices.clear();
                                         onStartCommandSeparateThread();
+                                    } else if (connection != null) {
+                                        closeConnection(connection);
                                     }
                                     return;
                                 }
 
+                                if (connection == null) {
+                                    // we gave up on this robot already
+                                    Log.i("onConnectionStateChange", "No connection for "
+                                            + gatt.getDevice().getAddress());
+                                    gatt.close();
+                                    return;
+                                }
+
                                 if (newState == BluetoothProfile.STATE_CONNECTED) {
                                     if (status == BluetoothGatt.GATT_SUCCESS) {
 
                                         Log.i("onConnect", "Connected to " + (gatt.getDevice()).getName());
-                                        currConnectedDevice = gatt;
+                                        connection.gatt = gatt;
+                                        connection.gattQueue.setGatt(gatt);
 
-                                        if (currConnectedDevice.discoverServices()) {
+                                        if (connection.gatt.discoverServices()) {
 
                                         } else {
                                             Log.e("onConnect", "Failed service discovery");
                                             gatt.disconnect();
-                                            gatt.close();
-                                            currConnectedDevice = null;
-                                            isConnected = false;
+                                            closeConnection(connection);
                                             // safety-net
                                             if (btAdapter != null) {
                                                 // resetting BT
+                                                closeAllConnections();
                                                 btAdapter.disable();
                                                 while (btAdapter.isEnabled()) {
                                                     try {
@@ -401,24 +478,15 @@ public class ControllerService extends Service {
                                     //Log.i("onDisconnect", "Disconnected with status " + status);
                                     Log.i("onDisconnect", "Disconnected from " + (gatt.getDevice()).getName());
                                     try {
-                                        currConnectedDevice.close();
-                                        currConnectedDevice = null;
-                                        isConnected = false;
+                                        // ends transfer review and notification read (safety if we
+                                        // disconnect during transfer) and frees the slot
+                                        closeConnection(connection);
+                                        Log.i("onDisconnect", "Connections: " + connectionPool);
+                                        Log.i("onDisconnect", "Transfers: " + transferStats);
 
                                         //tell RobotInfo to end
                                         //sendBroadcast(new Intent().setAction(FINISH));
 
-                                        // end transfer review if we disconnected during transfer process
-                                        if (!statusReviewOff) {
-                                            statusReview.close();
-                                            statusReview = null;
-                                        }
-
-                                        // end notification read (safety if we disconnect during transfer)
-                                        if (readNotifications != null) {
-                                            readNotifications.close();
-                                        }
-
                                         //**DEMO** end tracking of robot proximity
                                         //tracker.close();
                                         //tracker = null;
@@ -427,29 +495,18 @@ public class ControllerService extends Service {
                                         //arAdapter.clear();
                                         //robot.clean();
                                         //DeviceUtilities.robot = null;
-                                        strJSON = null;
 
                                         //safety-net
                                         //if (notifManager != null) {
                                         //notifManager.cancelAll();
                                         //}
 
-                                        // make sure these blocking queues are cleared if we
-                                        // disconnected abruptly
-                                        makeRobotBlock.clear();
-                                        characteristicWriteBlock.clear();
-
                                         // safety-net
                                         if (btAdapter != null) {
-                                            leScanner.startScan(null,
-                                                    new ScanSettings.Builder()
-                                                            .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                                                            //.setReportDelay(0)
-                                                            //.setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
-                                                            //.setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
-                                                            //.setNumOfMatches(ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT)
-                                                            .build(),
-                                                    scanCallback);
+                                            // a slot is free again -> look for the next robot
+                                            if (!isScanning) {
+                                                startScanning();
+                                            }
                                             //starting scan on service thread
                                             /*
                                             while (!(btAdapter.startLeScan(leCallback))) {
@@ -460,7 +517,6 @@ public class ControllerService extends Service {
                                                     Log.e("onDisconnect", "Service thread failed to sleep.");
                                                 }
                                             }*/
-                                            isScanning = true;
                                             robotUpdateClock.startTimer();
                                         }
                                     } catch (Exception ex) {
@@ -482,14 +538,15 @@ public class ControllerService extends Service {
                             @Override
                             public void run() {
 
-                                if (status == BluetoothGatt.GATT_SUCCESS) {
+                                final RobotConnection connection = connectionPool.get(gatt.getDevice().getAddress());
+
+                                if (status == BluetoothGatt.GATT_SUCCESS && connection != null) {
 
                                     // have to run in separate thread because makeRobot is a blocking call
                                     new Thread(new Runnable() {
                                         @Override
                                         public void run() {
-
-                                            makeRobot();
+                                            makeRobot(connection);
                                             /*
                                             DeviceUtilities.robot = robot;
                                             if (MainActivity.isOnMain) {
@@ -523,37 +580,31 @@ public class ControllerService extends Service {
 
                     @Override
                     public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                        RobotConnection connection = connectionPool.get(gatt.getDevice().getAddress());
+                        if (connection == null) {
+                            return;
+                        }
 
+                        //finished reading so hand the value to whoever waits on the read
+                        connection.gattQueue.onCharacteristicRead(characteristic, status);
+                        if (status != BluetoothGatt.GATT_SUCCESS) {
+                            Log.e("onCharacteristicRead", "Reading failed: " + characteristic.getUuid().toString());
+                            connection.disconnect();
+                        }
+                    }
 
-                        if (status == BluetoothGatt.GATT_SUCCESS) {
-                            //finished reading so add our characteristic to the blocking queue
-                            makeRobotBlock.add(1);
-                            //Log.i("onCharacteristicRead", "finished reading");
-                            //Log.i("onCharacteristicRead",
-                                    //java.nio.ByteBuffer.wrap(characteristic.getValue()).getInt() + "");
-                            //Log.i("onCharacteristicRead", supportedCharas.get(characteristic.getUuid().toString()));
-                            totalNumOfPackets = java.nio.ByteBuffer.wrap(characteristic.getValue()).getInt();
-
-                            //if this happens then get out!
-                            if (totalNumOfPackets < 1) {
-                                currConnectedDevice.disconnect();
-                            }
+                    @Override
+                    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                        RobotConnection connection = connectionPool.get(gatt.getDevice().getAddress());
+                        if (connection == null) {
+                            return;
+                        }
 
-                            // initialize map with correct number of packets wanted
-                            if (totalNumOfPackets >= 128) {
-                                for (int i = 0; i < 128; i++) {
-                                    packetsFound.put(i, "");
-                                }
-                            } else {
-                                for (int i = 0; i < totalNumOfPackets; i++) {
-                                    packetsFound.put(i, "");
-                                }
-                            }
-                        } else {
-                            Log.e("onCharacteristicRead", "Reading failed: " + characteristic.getUuid().toString());
-                            makeRobotBlock.add(1);
-                            currConnectedDevice.disconnect();
+                        Log.i("onMtuChanged", "Mtu: " + mtu + " Status: " + status);
+                        if (status == BluetoothGatt.GATT_SUCCESS) {
+                            connection.mtu = mtu;
                         }
+                        connection.gattQueue.onMtuChanged(mtu, status);
                     }
 
                     @Override
@@ -570,14 +621,18 @@ public class ControllerService extends Service {
                     @Override
                     public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
                                                   int status) {
+                        RobotConnection connection = connectionPool.get(gatt.getDevice().getAddress());
+                        if (connection == null) {
+                            return;
+                        }
+
+                        // completes the subscribe waiting on this descriptor
+                        connection.gattQueue.onDescriptorWrite(descriptor, status);
                         if (status == BluetoothGatt.GATT_SUCCESS) {
                             Log.i("onDescriptorWrite", "Successfully Written");
-                            // blocking queue add for packet read characteristic
-                            makeRobotBlock.add(1);
                         } else {
                             Log.e("onDescriptorWrite", "Write failed");
-                            currConnectedDevice.disconnect();
-                            makeRobotBlock.add(1);
+                            connection.disconnect();
                         }
                     }
 
@@ -586,7 +641,10 @@ public class ControllerService extends Service {
                     public void onCharacteristicChanged(BluetoothGatt gatt,
                                                         final BluetoothGattCharacteristic characteristic) {
                         Log.i("onCharaChange", "Successfully notified: " + characteristic.getUuid().toString());
-
+                        RobotConnection connection = connectionPool.get(gatt.getDevice().getAddress());
+                        if (connection == null) {
+                            return;
+                        }
 
                             // for reasons unknown we cannot post onto service thread
                             // (or even another work thread) lest multiple characteristics
@@ -600,10 +658,9 @@ public class ControllerService extends Service {
                             // this characteristic sends an update
                             if (characteristic.
                                     getUuid().toString().equals("00002a10-30de-4630-9b59-27228d45bf11")) {
-                                notificationQueueLock.lock();
-                                // this characteristic is sending update - add to queue
-                                notificationQueue.add(characteristic.getValue());
-                                notificationQueueLock.unlock();
+                                // this characteristic is sending update - copy into the ring
+                                // (notifications of one gatt come in one at a time -> one producer)
+                                connection.notifications.offer(characteristic.getValue());
 
                             } else if (characteristic.
                                     getUuid().toString().equals("00002a13-30de-4630-9b59-27228d45bf11")) {
@@ -615,18 +672,18 @@ public class ControllerService extends Service {
                                 try {
                                     if (characteristic.getValue()[0] != 0) {
                                         Log.i("onCharaChange", "Something weird happened -> resend");
-                                        handleMissingPacketRequest(characteristic.getValue());
+                                        handleMissingPacketRequest(connection, characteristic.getValue());
                                     } else {
-                                        outgoingPackets.clear();
-                                        makeRobotBlock.add(1); // proceed
+                                        connection.outgoingPackets.clear();
+                                        connection.replyAckBlock.offer(1); // proceed
                                     }
                                 } catch (Exception ex){
                                     StringWriter stringWriter = new StringWriter();
                                     PrintWriter printWriter = new PrintWriter(stringWriter, true);
                                     ex.printStackTrace(printWriter);
                                     Log.e("onCharaChange", stringWriter.toString());
-                                    currConnectedDevice.disconnect();
-                                    makeRobotBlock.clear();
+                                    connection.disconnect();
+                                    connection.replyAckBlock.clear();
                                 }
                             }
 
@@ -637,13 +694,18 @@ public class ControllerService extends Service {
                     public void onCharacteristicWrite(BluetoothGatt gatt,
                                                       BluetoothGattCharacteristic characteristic,
                                                       int status) {
+                        RobotConnection connection = connectionPool.get(gatt.getDevice().getAddress());
+                        if (connection == null) {
+                            return;
+                        }
+
                         if (status == BluetoothGatt.GATT_SUCCESS) {
                             Log.i("OnCharaWrite", "Successfully written: " + characteristic.getUuid());
-                            characteristicWriteBlock.add(1);
                         } else {
                             Log.i("OnCharaWrite", "Unsuccessful write: " + characteristic.getUuid());
-                            characteristicWriteBlock.add(1);
                         }
+                        // completes the write and issues the next queued operation
+                        connection.gattQueue.onCharacteristicWrite(characteristic, status);
                     }
                 };
 
@@ -694,18 +756,29 @@ public class ControllerService extends Service {
 
                                 } else*/
 
+                                if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+                                    screenOn = false;
+                                    updateBatchScanning();
+                                } else if (Intent.ACTION_SCREEN_ON.equals(action)) {
+                                    screenOn = true;
+                                    updateBatchScanning();
+                                }
+
                                 if (UPDATE_COMPLETE.equals(action)) {
-                                    // update complete
-                                    // convert our string into JSON
+                                    RobotConnection connection =
+                                            connectionPool.get(intent.getStringExtra(EXTRA_ADDRESS));
+                                    if (connection == null || connection.update == null) {
+                                        // robot disconnected before we got to it
+                                        return;
+                                    }
+                                    // update complete -> decoded while it streamed in
                                     try {
-                                        JSONObject jsonMessage = new JSONObject(strJSON);
-                                        // get hash value from json string
-                                        CRC32 crc32 = new CRC32();
-                                        crc32.update(strJSON.getBytes());
-                                        long statusHashValue = crc32.getValue();
-                                        strJSON = null;
+                                        RobotUpdate update = connection.update;
+                                        // get hash value of json string -> worked out while reassembling
+                                        long statusHashValue = connection.statusHashValue;
+                                        connection.update = null;
 
-                                        Log.i("Controller.Update", jsonMessage.toString(2));
+                                        Log.i("Controller.Update", update.toString());
 
                                         // sort closest to furthest
                                         //modelLock.lock();
@@ -717,19 +790,26 @@ public class ControllerService extends Service {
                                         //});
                                         //modelLock.unlock();
 
-                                        if (jsonMessage.getString("msgtype").equals("ack")) {
+                                        // robot is fresh again
+                                        long timeToFresh = connectionScheduler.synced(connection.address);
+                                        Log.i("UPDATE.receiver", "Time to fresh(ms): " + timeToFresh
+                                                + ". " + connectionScheduler);
+                                        transferStats.recordSync(System.currentTimeMillis() - connection.connectedAt);
+
+                                        if (update.getMsgType().equals("ack")) {
                                             // no update
-                                            modelLock.lock();
-                                            setModel(model);
-                                            modelLock.unlock();
+                                            if (connection.newRobot != null) {
+                                                addRobot(connection.newRobot);
+                                                connection.newRobot = null;
+                                            }
                                             //robotsAsBTDevices.clear();
-                                            currConnectedDevice.disconnect();
+                                            connection.disconnect();
                                             Log.i("UPDATE.receiver", "ACK!");
                                             return;
                                         }
 
                                         // get robot's image
-                                        String makeOfRobot = jsonMessage.getString("model");
+                                        String makeOfRobot = update.getModel();
                                         int imgOfBot = -1;
                                         if (makeOfRobot.equals("neato")) {
                                             imgOfBot = R.drawable.svg_neato;
@@ -748,52 +828,98 @@ public class ControllerService extends Service {
                                             imgOfBot = R.drawable.junior;
                                         }
 
-                                        modelLock.lock();
-                                        for (Robot bot : model) {
-                                            if (bot.getId().equals(currConnectedDevice.getDevice().getAddress())) {
+                                        String nameOfRobot = update.getName();
+                                        String stateOfRobot = update.getState();
+                                        JSONArray progression = update.getProgression();
+                                        if (update.hasHash()) {
+                                            // hash of the whole status, not of the bytes we got
+                                            statusHashValue = update.getHash();
+                                        }
+                                        boolean deltaRejected = false;
+
+                                        String addressOfRobot = connection.address;
+                                        String logVisibility = null;
+                                        boolean statusChanged = true;
+                                        theModelLock.lock();
+                                        try {
+                                            Robot bot = findRobot(addressOfRobot);
+                                            if (bot == null && connection.newRobot != null) {
+                                                // first update for this robot -> it joins the model now
+                                                bot = connection.newRobot;
+                                                addRobot(bot);
+                                            }
+                                            connection.newRobot = null;
+                                            if (update.isDelta() && (bot == null
+                                                    || update.getBase() != connection.syncBase
+                                                    || bot.getStatusHashValue() != connection.syncBase)) {
+                                                // delta doesn't apply to what we hold -> full sync next time
+                                                deltaRejected = true;
+                                            } else if (bot != null) {
                                                 String originalName = bot.getName();
+                                                statusChanged = (originalName == null
+                                                        || bot.getStatusHashValue() != statusHashValue);
                                                 // set this robot's name
-                                                bot.setName(jsonMessage.getString("name"));
+                                                bot.setName(nameOfRobot);
                                                 // set it's state
-                                                bot.setCurrState(jsonMessage.getString("state"));
+                                                bot.setCurrState(stateOfRobot);
                                                 // set it's model
                                                 bot.setModel(makeOfRobot);
                                                 // set image of robot
                                                 bot.setImage(imgOfBot);
                                                 // get the robot progression if it exists
-                                                if (!(jsonMessage.isNull("progression"))) {
-                                                    bot.setProgression(jsonMessage.getJSONArray("progression"));
+                                                if (progression != null && update.isDelta()) {
+                                                    int received = progression.length();
+                                                    progression = bot.mergeProgression(progression);
+                                                    Log.i("UPDATE.receiver", "Delta: " + received
+                                                            + " elements, progression: " + progression.length());
+                                                    bot.setProgression(progression);
+                                                } else if (progression != null) {
+                                                    bot.setProgression(progression);
                                                 }
                                                 // set checksum value
                                                 bot.setStatusHashValue(statusHashValue);
                                                 if (originalName == null) {
-                                                    if (isCurrRobotVisible) {
-                                                        Log(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss")
-                                                                .format(new Date())
-                                                                + ",SETVISIBLE,"
-                                                                + bot.getName());
-                                                    } else {
-                                                        Log(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss")
-                                                                .format(new Date())
-                                                                + ",SETHIDDEN,"
-                                                                + bot.getName());
-                                                    }
+                                                    logVisibility = (connection.visible ? ",SETVISIBLE," : ",SETHIDDEN,")
+                                                            + bot.getName();
                                                 }
                                             }
+                                        } finally {
+                                            theModelLock.unlock();
                                         }
 
-                                        setModel(model);
-                                        modelLock.unlock();
+                                        if (deltaRejected) {
+                                            Log.e("UPDATE.receiver", "Delta does not apply -> full sync next time");
+                                            fullSyncNeeded.add(addressOfRobot);
+                                            connection.disconnect();
+                                            return;
+                                        }
+
+                                        // scan harder while robots need attention or are changing
+                                        scanScheduler.setRobotState(addressOfRobot, stateOfRobot);
+                                        if (statusChanged) {
+                                            scanScheduler.statusChanged();
+                                            // look again once the change is no longer recent
+                                            serviceHandler.removeCallbacks(recentChangeOver);
+                                            serviceHandler.postDelayed(recentChangeOver,
+                                                    scanScheduler.getRecentChangeWindow());
+                                        }
+                                        updateScanProfile();
+
+                                        if (logVisibility != null) {
+                                            Log(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss")
+                                                    .format(new Date())
+                                                    + logVisibility);
+                                        }
 
                                         //robotsAsBTDevices.clear();
-                                        currConnectedDevice.disconnect();
+                                        connection.disconnect();
 
                                         Log(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss")
                                                 .format(new Date())
                                                 + ",UPDATED,"
-                                                + jsonMessage.getString("name"));
+                                                + nameOfRobot);
                                     } catch (JSONException ex) {
-                                        currConnectedDevice.disconnect();
+                                        connection.disconnect();
                                         StringWriter stringWriter = new StringWriter();
                                         PrintWriter printWriter = new PrintWriter(stringWriter, true);
                                         ex.printStackTrace(printWriter);
@@ -810,6 +936,8 @@ public class ControllerService extends Service {
                 //filter.addAction(DISMISS);
                 filter.addAction(DESERIALIZE_JPEG);
                 filter.addAction(UPDATE_COMPLETE);
+                filter.addAction(Intent.ACTION_SCREEN_OFF);
+                filter.addAction(Intent.ACTION_SCREEN_ON);
                 //filter.addAction(SEND_JPEG);
                 registerReceiver(receiver, filter);
             }
@@ -848,15 +976,7 @@ public class ControllerService extends Service {
         leScanner = btAdapter.getBluetoothLeScanner();
 
         //start scanning
-        leScanner.startScan(null,
-                new ScanSettings.Builder()
-                        .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                        //.setReportDelay(0)
-                        //.setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
-                        //.setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
-                        //.setNumOfMatches(ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT)
-                        .build(),
-                scanCallback);
+        startScanning();
         /*
         while (!(btAdapter.startLeScan(leCallback))) {
             try {
@@ -866,7 +986,145 @@ public class ControllerService extends Service {
                 Log.e(TAG, "Service thread failed to sleep.");
             }
         } */
+    }
+
+    /**
+     * starts le scanning for robots.
+     * if the controller supports offloaded filtering it only wakes us for the robot uuid,
+     * otherwise every result comes through and scanCallback pre-filters in software.
+     * the scan mode and on/off windows come from scanScheduler
+     */
+    private void startScanning() {
+        List<ScanFilter> scanFilters = null;
+
+        // a restart always begins a fresh on-window
+        serviceHandler.removeCallbacks(endScanWindow);
+        serviceHandler.removeCallbacks(startScanWindow);
+        scanProfile = scanScheduler.selectProfile();
+
+        offloadedFiltering = btAdapter.isOffloadedFilteringSupported();
+        if (offloadedFiltering) {
+            scanFilters = new ArrayList<ScanFilter>();
+            scanFilters.add(new ScanFilter.Builder()
+                    .setServiceUuid(new ParcelUuid(uuidOfInterest))
+                    .build());
+        }
+
+        // batches are only delivered if the controller can hold results for us
+        long reportDelay = 0;
+        if (batchScanning && btAdapter.isOffloadedScanBatchingSupported()) {
+            reportDelay = SCAN_REPORT_DELAY;
+        }
+
+        Log.i("Controller.startScan", (offloadedFiltering ? "Offloaded" : "Software")
+                + " filtering. Results received: " + scanResultsReceived.get()
+                + ", pre-filtered: " + scanResultsPrefiltered.get());
+        Log.i("Controller.startScan", "Report delay: " + reportDelay + ". " + scanBatchStats);
+        Log.i("Controller.startScan", "Profile: " + scanProfile + ". " + scanScheduler);
+
+        leScanner.startScan(scanFilters,
+                new ScanSettings.Builder()
+                        .setScanMode(scanProfile.getScanMode())
+                        .setReportDelay(reportDelay)
+                        //.setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                        //.setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
+                        //.setNumOfMatches(ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT)
+                        .build(),
+                scanCallback);
         isScanning = true;
+        scanScheduler.radioOn(scanProfile);
+
+        // duty-cycled profiles rest once the on-window is over
+        if (scanScheduler.getOffWindow(scanProfile) > 0) {
+            serviceHandler.postDelayed(endScanWindow, scanScheduler.getOnWindow(scanProfile));
+        }
+    }
+
+    /**
+     * restarts scanning if the signals now call for a different profile.
+     * a profile that scans harder than the current one cuts an off-window short.
+     * must be called on the service thread
+     */
+    private void updateScanProfile() {
+        ScanScheduler.Profile profile = scanScheduler.selectProfile();
+        if (scanProfile == null || profile == scanProfile || connectionPool.isFull() || leScanner == null) {
+            // scanning hasn't started yet or nothing changed
+            return;
+        }
+
+        if (isScanning) {
+            leScanner.stopScan(scanCallback);
+            scanScheduler.radioOff();
+            startScanning();
+        } else if (profile.ordinal() < scanProfile.ordinal()) {
+            startScanning();
+        }
+    }
+
+    /**
+     * @return false if the controller isn't filtering for us and the result isn't a robot.
+     * dropping it here keeps it from costing a lock and a queue slot
+     */
+    private boolean passesPrefilter(ScanResult result) {
+        if (offloadedFiltering) {
+            return true;
+        }
+        if (result.getScanRecord() == null
+                || !scanPrefilter.advertisesUuid(result.getScanRecord().getBytes())) {
+            scanResultsPrefiltered.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * switches between batched and per-advertisement scan delivery.
+     * must be called on the service thread
+     * @param enable is true for batched delivery
+     */
+    private void setBatchScanning(boolean enable) {
+        if (batchScanning == enable) {
+            return;
+        }
+        batchScanning = enable;
+        Log.i("Controller.batchScan", "Batch scanning: " + batchScanning);
+
+        // restart the scan so the report delay takes effect. if we're connected
+        // the scan is started again on disconnect and picks it up there
+        if (isScanning) {
+            leScanner.flushPendingScanResults(scanCallback);
+            leScanner.stopScan(scanCallback);
+            startScanning();
+        }
+    }
+
+    /**
+     * batch scan results while the screen is off and nobody is looking at a robot
+     */
+    private void updateBatchScanning() {
+        setBatchScanning(!screenOn && !scanScheduler.isUiVisible());
+    }
+
+    /**
+     * used by RobotSelector and RobotLink so a user looking at robots gets low latency scanning
+     * @param visible is true when the view comes to the foreground and false when it leaves
+     */
+    public static void setUiVisible(final boolean visible) {
+        final ControllerService service = controllerService;
+        if (service == null || service.serviceHandler == null) {
+            return;
+        }
+        service.serviceHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (service.scanScheduler == null) {
+                    return;
+                }
+                service.scanScheduler.setUiVisible(visible);
+                service.updateBatchScanning();
+                service.updateScanProfile();
+            }
+        });
     }
 
     @Override
@@ -876,18 +1134,24 @@ public class ControllerService extends Service {
         this.stopService(notifViewIntent);
         Log.i("Controller.onDestroy()", "Stopped NotificationViewService");
 
-        //close if we are connected
-        if (currConnectedDevice != null) {
-            currConnectedDevice.close();
-        }
+        //close every robot we are connected to. also ends transfer review and
+        // notification read threads if app is closed during transfer process
+        Log.i("Controller.onDestroy()", "Connections: " + connectionPool);
+        Log.i("Controller.onDestroy()", "Transfers: " + transferStats);
+        closeAllConnections();
 
         //stop scanning
+        serviceHandler.removeCallbacks(endScanWindow);
+        serviceHandler.removeCallbacks(startScanWindow);
+        serviceHandler.removeCallbacks(recentChangeOver);
         if (isScanning) {
             serviceHandler.post(new Runnable() {
                 @Override
                 public void run() {
                     //btAdapter.stopLeScan(leCallback);
                     leScanner.stopScan(scanCallback);
+                    scanScheduler.radioOff();
+                    Log.i("Controller.onDestroy()", "Scan radio time: " + scanScheduler);
                 }
             });
         }
@@ -900,21 +1164,11 @@ public class ControllerService extends Service {
 
         unregisterReceiver(receiver);
 
-
-        // end transfer review if app is closed during transfer process
-        if (!statusReviewOff) {
-            statusReview.close();
-        }
-
-        // end notification read thread if app is closed during transfer process
-        if (readNotifications != null) {
-            readNotifications.close();
-        }
-
         // destroy any active notifications
         notifManager.cancelAll();
 
         handleScanCallbacks.close();
+        idleTimer.cancel();
 
         // cleaning up
         //btAdapter = null;
@@ -957,11 +1211,13 @@ public class ControllerService extends Service {
         private BluetoothDevice device;
         private int rssi;
         private byte[] scanRecord;
+        private long timeStamp; // System.nanoTime() of the scan callback
 
         public ScanCallbackPackage(BluetoothDevice device, int rssi, byte[] scanRecord) {
             this.device = device;
             this.rssi = rssi;
             this.scanRecord = scanRecord;
+            this.timeStamp = System.nanoTime();
         }
 
         public BluetoothDevice getDevice() {
@@ -975,6 +1231,10 @@ public class ControllerService extends Service {
         public byte[] getScanRecord() {
             return scanRecord;
         }
+
+        public long getTimeStamp() {
+            return timeStamp;
+        }
     }
 
     /**
@@ -984,28 +1244,30 @@ public class ControllerService extends Service {
         final String TAG = "Controller.Callbacks";
         private boolean keepAlive = true;
         private String addressOfRobotNeedingReply = null;
+        // reused for every scan record -> only touched by this thread
+        private AdvertisementParser advertisement = new AdvertisementParser(uuidOfInterest);
 
         @Override
         public void run() {
             while (keepAlive) {
 
-                scanCallbackPackagesLock.lock();
-
-                while (scanCallbackPackages.isEmpty() && keepAlive) {
-                    scanCallbackPackagesLock.unlock();
-                    try {
-                        //Log.i(TAG, "About to sleep");
-                        sleep(200);
-                    } catch (Exception ex) {
-
-                    }
-                    scanCallbackPackagesLock.lock();
+                ScanCallbackPackage callbackPackage;
+                try {
+                    // sleeps until a scan callback is posted or it is time to pick a robot
+                    callbackPackage = scanCallbackPackages.poll(connectionPool.isFull() ?
+                            Long.MAX_VALUE : connectionScheduler.getTimeUntilReady());
+                } catch (InterruptedException ex) {
+                    // close() wakes us up
+                    continue;
                 }
 
-                if (keepAlive) {
+                if (callbackPackage == null) {
+                    // gather window is over
+                    connectToBestCandidate();
+                    continue;
+                }
 
-                    ScanCallbackPackage callbackPackage = scanCallbackPackages.remove(0);
-                    scanCallbackPackagesLock.unlock();
+                try {
 
                     //Log.i(TAG, "Queue size: " + scanCallbackPackages.size());
 
@@ -1025,15 +1287,14 @@ public class ControllerService extends Service {
                         return;
                     }
 
-                    // If device has been added to rejected list then go no further.
-                    if (rejectedDeviceList.contains(device)) {
-                        //Log.i(TAG, "Rejected " + device.getAddress());
+                    // so this robot won't be added to robotsAsBTDevices without connecting
+                    if (connectionPool.isFull()) {
+                        scanCallbackPackages.clear();
                         continue;
                     }
 
-                    // so this robot won't be added to robotsAsBTDevices without connecting
-                    if (isConnected) {
-                        scanCallbackPackages.clear();
+                    // this robot is being synced right now
+                    if (connectionPool.contains(device.getAddress())) {
                         continue;
                     }
 
@@ -1051,82 +1312,47 @@ public class ControllerService extends Service {
 
                     Log.i(TAG, device.getAddress());
 
-                    // check to see if there is a reply job in queue
+                    // check to see if there is a reply job in queue for this device
+                    boolean replyPending = false;
                     replyQueueLock.lock();
                     if (!(replyQueue.isEmpty())) {
                         // there's a reply job waiting
-                        if ((replyQueue.get(0).getRobotId()).equals(device.getAddress())) {
-                            // this device is the robot that needs a reply
-                            // so connect right away
-                            robotsAsBTDevices.put(device, rssi);
-                            robotUpdateClock.stopTimer();
-                            // needs to be here in case a robot right before took a false
-                            isCurrRobotVisible = true;
-                            connect(device);
-                        }
+                        replyPending = (replyQueue.get(0).getRobotId()).equals(device.getAddress());
                     }
                     replyQueueLock.unlock();
 
 
                     // check if this device has been connected to recently
-                    if (!robotsAsBTDevices.containsKey(device)) {
-
-                        List<String> listOfStructures = parseScanRecord(scanRecord);
-                        //Log.i(TAG, device.getAddress());
-                        for (String s : listOfStructures) {
-                            Log.i(TAG, s);
-                        }
+                    // (a robot that needs a reply gets connected to regardless)
+                    if (replyPending || !robotsAsBTDevices.containsKey(device)) {
 
-                        if (uuidOfInterest.equals(getAdUuidOfPeripheral(listOfStructures))) {
+                        if (advertisement.parse(scanRecord)) {
                             //DeviceUtilities item = new DeviceUtilities(device, rssi);
-                            isCurrRobotVisible = isRobotVisible(listOfStructures);
+                            int smoothedRssi = proximityRanking.update(device.getAddress(), rssi);
 
                             // check if there is an update with this robot
-                            if (checkForUpdate(device.getAddress(), listOfStructures)) {
-                                robotsAsBTDevices.put(device, rssi);
-                                robotUpdateClock.stopTimer();
-                                //connect and get info
-                                connect(device);
+                            boolean checksumChanged = checkForUpdate(device.getAddress(), advertisement);
+                            if (replyPending || checksumChanged) {
+                                // wait for the scheduler to pick the most deserving robot
+                                String state = getRobotState(device.getAddress());
+                                connectionScheduler.offer(device, replyPending,
+                                        "help".equals(state) || "dangerous".equals(state),
+                                        checksumChanged, smoothedRssi, advertisement.isVisible(),
+                                        advertisement.hasChecksum() ? advertisement.getChecksum() : -1);
                             } else {
                                 //***need to set visibility because there is no update***
-                                modelLock.lock();
-                                model = getModel();
-                                // find robot in model
-                                for (Robot bot : model) {
-                                    if (bot.getId().equals(device.getAddress())) {
-                                        int index = model.indexOf(bot);
-                                        Robot robotPrime = (Robot)bot.clone();
-                                        robotPrime.setProximity(rssi);
-                                        robotPrime.setVisible(isCurrRobotVisible);
-                                        model.set(index, robotPrime);
-                                        // set the model now
-                                        setModel(model);
-                                        if (bot.isVisible() && !isCurrRobotVisible) {
-                                            Log(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss")
-                                                    .format(new Date())
-                                                    + ",SETHIDDEN,"
-                                                    + bot.getName());
-                                        } else if (!bot.isVisible() && isCurrRobotVisible) {
-                                            Log(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss")
-                                                    .format(new Date())
-                                                    + ",SETVISIBLE,"
-                                                    + bot.getName());
-                                        }
-                                        break;
-                                    }
-                                }
-                                modelLock.unlock();
+                                updateSighting(device.getAddress(), smoothedRssi, advertisement.isVisible());
                             }
-
-                        } else {
-                            // Add to rejected list
-                            rejectedDeviceList.add(device);
                         }
 
                     } else { //this is one of our robots
 
                         //Log.i(TAG, "Heard one of our robots");
 
+                        // keep proximity fresh until this robot is due for another update
+                        updateProximity(device.getAddress(),
+                                proximityRanking.update(device.getAddress(), rssi));
+
                         // update proximity
                         /*
                         modelLock.lock();
@@ -1174,268 +1400,132 @@ public class ControllerService extends Service {
                 }
             }*/
                     }
+                } finally {
+                    // callback to decision time
+                    scanCallbackPackages.recordLatency(System.nanoTime() - callbackPackage.getTimeStamp());
+                }
+
+                if (!connectionPool.isFull() && connectionScheduler.getTimeUntilReady() == 0) {
+                    connectToBestCandidate();
                 }
             }
 
-            if (scanCallbackPackagesLock.isHeldByCurrentThread()) {
-                scanCallbackPackagesLock.unlock();
+            Log.i(TAG, "Scan mailbox: " + scanCallbackPackages);
+        }
+
+        /**
+         * connects to the candidate the scheduler ranks highest
+         */
+        private void connectToBestCandidate() {
+            if (connectionPool.isFull()) {
+                return;
+            }
+            // robots the proximity ranking dropped as out of range
+            connectionScheduler.retainOnly(proximityRanking.getNearest(Integer.MAX_VALUE));
+            ConnectionScheduler.Candidate candidate = connectionScheduler.poll();
+            if (candidate == null || connectionPool.contains(candidate.getDevice().getAddress())) {
+                return;
             }
+
+            robotsAsBTDevices.put(candidate.getDevice(), candidate.getRssi());
+            robotUpdateClock.stopTimer();
+            //connect and get info
+            connect(candidate.getDevice(), candidate.getRssi(), candidate.isVisible(), candidate.getChecksum());
         }
 
         public void close() {
             keepAlive = false;
+            interrupt();
         }
     }
 
     /**
-     * @param scanRecord is  payload
-     * @return arraylist of all data structures in payload
+     * @param addressOfRobot is the mac address of the advertising robot
+     * @param advertisement holds the most recently parsed advertisement of this robot
+     * @return true if we don't know this robot or its advertised checksum differs from ours
      */
-    private List<String> parseScanRecord(byte[] scanRecord) {
-        // Contains info in payload
-        List<String> GAPStructures = new ArrayList<>();
-
-        // Keeping track of which byte we're on
-        int index = 0;
-
-        // Loop through whole payload
-        while (index < scanRecord.length) {
-
-            int lengthOfGAPStructure = scanRecord[index];
-
-            // checking to see if payload is not full
-            if (lengthOfGAPStructure == 0) {
-                // if here then payload no longer contains any ad structures.
-                break;
-            }
-            index++;
-
-            //checking to see if GAP type is 0
-            if (scanRecord[index] == 0) {
-                // if here then no specified GAP type was used
-                break;
-            }
-
-
-            //String structure = (Arrays.copyOfRange(scanRecord, index, ((index+lengthOfGAPStructure)-1))).toString();
-            //loop through each byte and get it's binary representation in string form******
-            byte[] adData = Arrays.copyOfRange(scanRecord, index, ((index + lengthOfGAPStructure)));
-            String structure = "";
-            for (int i = 0; i < adData.length; i++) {
-                structure += ((Integer.toBinaryString((adData[i] & 0b11111111) + 256)).substring(1) + " ");
-            }
-
-            GAPStructures.add(structure);
-            index += (lengthOfGAPStructure);
+    private boolean checkForUpdate(String addressOfRobot, AdvertisementParser advertisement) {
+        // check if we already have a robot with this address
+        theModelLock.lock();
+        Robot robot = findRobot(addressOfRobot);
+        // no robot has been found in current model -> need to connect
+        // otherwise compare against what the last checksum was for this robot
+        boolean needsUpdate = (robot == null) || (advertisement.hasChecksum()
+                && robot.getStatusHashValue() != advertisement.getChecksum());
+        theModelLock.unlock();
 
-        }
-        return GAPStructures;
+        return needsUpdate;
     }
 
-
     /**
-     * @param listOfStructures is an arraylist with each element being a complete payload structure
-     * @return the uuid found at 0x06 gap data structure. if structure not found then a null uuid is returned
+     * connects to passed device in a free slot of the connection pool.
+     * scanning stops once every slot is taken
+     * @param rssi is the smoothed rssi of the robot
+     * @param visible is the visibility flag of the advertisement we connect on
+     * @param checksum is the status checksum of that advertisement, -1 if it had none
      */
-    private UUID getAdUuidOfPeripheral(List<String> listOfStructures) {
+    private void connect(BluetoothDevice device, int rssi, boolean visible, long checksum) {
 
-        UUID uuidTemp = null;
-        boolean incListOfUuidFound = false;
-        String strOfUuidElements = "";
-
-        for (String s : listOfStructures) {
-
-            //Log.i("getAdUuidOfPeripheral()", "Checking = " + s.substring(0, 8));
+        // if there's no free slot or we're already connected to this robot get out
+        if (connectionPool.isFull() || connectionPool.contains(device.getAddress())) {
+            return;
+        }
+        RobotConnection connection = new RobotConnection(device, rssi, visible, checksum);
+        if (!connectionPool.open(connection.address, connection)) {
+            // slot was taken in the meantime -> never used, give back its ring and queue
+            connection.close();
+            return;
+        }
 
-            if ((s.substring(0, 8)).equals("00000110")) {
+        //stop scanning once we can't take another robot
+        if (isScanning && connectionPool.isFull()) {
+            //btAdapter.stopLeScan(leCallback);
+            try {
+                leScanner.stopScan(scanCallback);
+            } catch (Exception ex) {
+                serviceHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onStartCommandSeparateThread();
+                    }
+                });
+            } finally {
+                isScanning = false;
+                scanScheduler.radioOff();
+            }
+        }
 
-                incListOfUuidFound = true;
-                strOfUuidElements = s.substring(9);
-                //Log.i("getAdUuidOfPeripheral()", "Found incomplete list of 128 bit UUIDs");
-                //Log.i("getAdUuidOfPeripheral()", "Bytes of UUID = " + strOfUuidElements);
-                //Log.i("getAdUuidOfPeripheral()", "Length = " + byteStringOfUuid);
-                break;
+        Log.i("Controller.connect()", "connecting to " + device.getAddress()
+                + ". Connections: " + connectionPool);
 
-            }
+        try {
+            // using reflection to get internal connectGatt
+            Method connectGattMethod = device.getClass().getMethod("connectGatt", Context.class, boolean.class, BluetoothGattCallback.class, int.class);
+            connection.gatt = (BluetoothGatt) connectGattMethod.invoke(device, ControllerService.this,
+                    false, btGattCallback, BluetoothDevice.TRANSPORT_LE);
+        } catch (Exception ex) {
+            Log.i("Controller.connect()", "failed connection");
         }
 
-        if (!incListOfUuidFound) {
-            return null;
+        connection.gattQueue.setGatt(connection.gatt);
+        if (connection.gatt == null) {
+            // no callbacks are coming for this robot -> give the slot back
+            closeConnection(connection);
+            serviceHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isScanning) {
+                        startScanning();
+                    }
+                }
+            });
+            return;
         }
 
-        strOfUuidElements = changeByteOrder(strOfUuidElements);
-        //Log.i("getAdUuidOfPeripheral()", "Reordered bytes of UUID = " + strOfUuidElements);
-
-        strOfUuidElements = binaryStrToUuidStr(strOfUuidElements);
-        //Log.i("getAdUuidOfPeripheral()", "UUID = " + strOfUuidElements);
-
-        uuidTemp = UUID.fromString(strOfUuidElements);
-        return uuidTemp;
-    }
-
-    /**
-     * takes a look at the 0xFF structure which will tell if the robot
-     * should be displayed or not
-     * 0 = visible
-     * 1 = not visible
-     * @param listOfStructures is an arraylist contating all gap structures
-     * @returns true if robot should be displayed to user
-     */
-    private boolean isRobotVisible(List<String> listOfStructures) {
-
-        for (String s : listOfStructures) {
-            //Log.i("shouldIgnoreRobot()", "Checking = " + s.substring(0, 8));
-            if ((s.substring(0, 8)).equals("11111111")) {
-                //Log.i("isRobotVisible()", "Length: " + ((s.substring(9)).length()));
-                if ((s.charAt(34)) == '0') {
-                    return true;
-                }
-                return false;
-                //Log.i("shouldIgnoreRobot()", "Bit is: " + (s.charAt(s.length() - 2));
-            }
-        }
-        return true;
-    }
-
-    private boolean checkForUpdate(String addressOfRobot, List<String> listOfStructures) {
-        // check if we already have a robot with this address
-        modelLock.lock();
-        Robot robot = null;
-        model = getModel();
-        for (Robot bot : model) {
-            if (bot.getId().equals(addressOfRobot)) {
-                robot = bot;
-                break;
-            }
-        }
-        modelLock.unlock();
-        // no robot has been found in current model -> need to connect
-        if (robot == null) {
-            return true;
-        }
-
-        Log.i("Controller.checkUpdate", "Robot checksum: " + robot.getStatusHashValue());
-        // get checksum value from server
-        for (String s : listOfStructures) {
-
-            if ((s.substring(0, 8)).equals("11111111")) {
-
-                Log.i("Controller.checkUpdate", "Ad checksum: "
-                        + Long.parseLong(s.substring(36).replaceAll("\\s",""), 2) + "");
-                // compare against what the last checksum was for this robot
-                if (robot.getStatusHashValue() != Long.parseLong(s.substring(36).replaceAll("\\s",""), 2)) {
-                    return true;
-                }
-                break;
-                //Log.i("Controller.checkUpdate", Long.toHexString(Long.parseLong(s.substring(36).replaceAll("\\s",""), 2)) + "");
-                //Log.i("Controller.checkUpdate", s.substring(36).replaceAll("\\s","").length() + "");
-            }
-        }
-
-        return false;
-    }
-
-    /**
-     * @param byteString is a uuid Byte String in little endian
-     * @return uuid byte string in big endian
-     */
-    private String changeByteOrder(String byteString) {
-
-        String result = "";
-
-
-        int end = byteString.length() - 5;
-        int start = end - 4;
-
-        //if even then account for a space
-        int whiteSpaceTracker = 1;
-
-        for (int i = 0; i < 32; i++) {
-
-            result = (result + byteString.substring(start, end) + " ");
-
-            if ((whiteSpaceTracker % 2) == 1) {
-                start = end;
-                end = end + 4;
-            } else {
-
-                start = start - 13;
-                end = start + 4;
-            }
-            whiteSpaceTracker++;
-        }
-
-        return result;
-
-
-    }
-
-    /**
-     * @param binaryString big endian byte string of uuid
-     * @return hex string of uuid
-     */
-    private String binaryStrToUuidStr(String binaryString) {
-
-        String result = "";
-
-        int start = 0;
-        int end = 4;
-
-        for (int i = 0; i < 32; i++) {
-
-            result += Integer.toHexString(Integer.parseInt(binaryString.substring(start, end), 2));
-            if (i == 7 || i == 11 | i == 15 || i == 19) {
-                result += "-";
-            }
-            start = end + 1;
-            end = end + 5;
-        }
-
-        return result;
-
-    }
-
-    /**
-     * stops scanning and connects to passed device
-     */
-    private void connect(BluetoothDevice device) {
-
-        //stop scanning
-        if (isScanning) {
-            //btAdapter.stopLeScan(leCallback);
-            try {
-                leScanner.stopScan(scanCallback);
-            } catch (Exception ex) {
-                serviceHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        onStartCommandSeparateThread();
-                    }
-                });
-            } finally {
-                isScanning = false;
-            }
-        }
-
-        // if we're already connected get out
-        if (isConnected) {
-            return;
-        }
-
-        Log.i("Controller.connect()", "connecting to " + device.getAddress());
-
-        try {
-            // using reflection to get internal connectGatt
-            Method connectGattMethod = device.getClass().getMethod("connectGatt", Context.class, boolean.class, BluetoothGattCallback.class, int.class);
-            connectGattMethod.invoke(device, ControllerService.this,
-                    false, btGattCallback, BluetoothDevice.TRANSPORT_LE);
-        } catch (Exception ex) {
-            Log.i("Controller.connect()", "failed connection");
-        }
-        // clear queue of callback packages
-        scanCallbackPackages.clear();
-
-        isConnected = true;
+        if (connectionPool.isFull()) {
+            // clear queue of callback packages
+            scanCallbackPackages.clear();
+        }
 
         /*
         Log.i("smartConnect()", "Just got in");
@@ -1499,110 +1589,586 @@ public class ControllerService extends Service {
     }
 
     /**
-     * used for multi packet reads.
-     * compares time stamps to determine when notification wave is over
+     * closes the link to a robot and gives its slot in the pool back
+     * @param connection is the robot to let go of
      */
+    private void closeConnection(RobotConnection connection) {
+        connection.close();
+        connectionPool.close(connection.address);
+    }
 
-    private class TransferStatusReview extends Thread {
+    /**
+     * closes the link to every robot we are connected to
+     */
+    private void closeAllConnections() {
+        for (RobotConnection connection : connectionPool.getAll()) {
+            closeConnection(connection);
+        }
+    }
+
+    /**
+     * state of the link to a single robot -> one per slot in connectionPool
+     */
+    private class RobotConnection {
+        private final String address; // mac address of the robot
+        private BluetoothGatt gatt = null; // gatt server of the robot
+        private final int rssi; // smoothed rssi when we chose to connect
+        private final boolean visible; // visible flag of the advertisement we connected on
+        private final long advertisedHash; // status checksum of that advertisement, -1 if none
+        private final long connectedAt; // time we started connecting
+        // robot that isn't in the model yet -> added once its first update completes
+        private Robot newRobot = null;
 
-        private boolean keepAlive;
-        long transferTimeStamp;
+        /*
+         * characteristics of the robot
+         */
+        private BluetoothGattCharacteristic missingPacketWrite = null;
+        private BluetoothGattCharacteristic totalNumOfPacketsWrite = null;
+        private BluetoothGattCharacteristic packetWrite = null;
+        private BluetoothGattCharacteristic packetRead = null;
 
-        public TransferStatusReview() {
-            keepAlive = true;
+        /*
+         * transfer state
+         */
+        private int mtu = DEFAULT_MTU; // att mtu agreed with the robot
+        private int capabilities = 0; // capability bits agreed with the robot
+        private long syncBase = -1; // status hash sent in the sync request, -1 if none was sent
+        private SlidingWindow window = null; // acks of a sliding window transfer, null in waves
+        private boolean priorityBoosted = false; // link is at high priority for a transfer
+        private long transferStartedAt = 0; // time the robot was asked to start streaming
+        private long transferMillis = 0; // length of the finished transfer
+        private long bytesReceived = 0; // payload bytes read from notifications
+        private long notificationCount = 0; // notifications read in this connection
+        private int totalNumOfPackets = -1;
+        private PacketReassembler reassembler = null; // payload of multi packet reads
+        private int waveStart = 0; // number of the first packet of the current wave
+        private int waveSize = 0; // packets in the current wave
+        private PayloadDecoder decoder = null; // parses the payload as it streams in
+        private RobotUpdate update = null; // contents of the payload once it is complete
+        private long statusHashValue = 0; // CRC32 of the payload bytes
+        private int refetchCount = 0; // payloads streamed again in this connection
+        private boolean awaitingMissedPackets = false; //used to know if we should expect a missing packet
+        // lock for sequencing idle checks and readNotifications
+        private final ReentrantLock transferLock = new ReentrantLock();
+        // used for determining when packets are lost
+        private final GapDetector gapDetector = new GapDetector();
+        // pending check for a wave that went quiet, null if none
+        private TimerTask idleCheck = null;
+        private volatile boolean closed = false; // connection has been closed
+        // notification values waiting for readNotifications
+        private final NotificationRing notifications =
+                new NotificationRing(NOTIFICATION_SLOTS, PREFERRED_MTU - ATT_HEADER_SIZE);
+        private ReadNotifications readNotifications = null; // thread reading notifications
+        //holds current batch of packets being sent to server
+        private final HashMap<Integer, byte[]> outgoingPackets = new HashMap<Integer, byte[]>();
+        // reads and writes of this robot, issued one at a time
+        private final GattOperationQueue gattQueue = new GattOperationQueue(null);
+        // used in makeRobot() to wait for the robot to confirm it received our whole reply
+        private final BlockingQueue<Integer> replyAckBlock = new ArrayBlockingQueue<Integer>(1);
+
+        public RobotConnection(BluetoothDevice device, int rssi, boolean visible, long advertisedHash) {
+            this.address = device.getAddress();
+            this.rssi = rssi;
+            this.visible = visible;
+            this.advertisedHash = advertisedHash;
+            this.connectedAt = System.currentTimeMillis();
         }
 
-        @Override
-        public void run() {
+        /**
+         * sets up the buffer for a payload of totalNumOfPackets and its first wave
+         */
+        public void startPayload() {
+            reassembler = new PacketReassembler(totalNumOfPackets, getPacketSize() - getHeaderSize());
+            if (hasCapability(CAP_DEFLATE)) {
+                reassembler.inflateWith(PayloadDictionary.get());
+            }
+            if (hasCapability(CAP_TRAILER)) {
+                reassembler.expectTrailer();
+            }
+            decoder = (hasCapability(CAP_BINARY) ? new WireFormat.Decoder() : new RobotUpdateDecoder());
+            reassembler.setDecoder(decoder);
+            waveStart = 0;
+            if (hasCapability(CAP_SLIDING_WINDOW)) {
+                // one window over the whole payload
+                window = new SlidingWindow();
+                if (hasCapability(CAP_FEC)) {
+                    reassembler.protectWith(SlidingWindow.PARITY_GROUP);
+                    window.protect(SlidingWindow.PARITY_GROUP);
+                }
+                startWave(totalNumOfPackets);
+            } else {
+                startWave(Math.min(WAVE_SIZE, totalNumOfPackets));
+            }
+        }
 
-            while (keepAlive) {
+        /**
+         * picks up a transfer an earlier connection didn't finish -> the robot only streams the
+         * packets it is missing
+         */
+        public void resumePayload(TransferCache.Transfer transfer) {
+            reassembler = transfer.getReassembler();
+            decoder = transfer.getDecoder();
+            waveStart = 0;
+            window = new SlidingWindow();
+            if (hasCapability(CAP_FEC)) {
+                window.protect(SlidingWindow.PARITY_GROUP);
+            }
+            window.resumeAt(SlidingWindow.getResumeEnd(reassembler, getPacketSize()));
+            startWave(totalNumOfPackets);
+            transferCache.recordResume(reassembler.getReceivedCount());
+            Log.i("Controller.Read", address + " resumed with " + reassembler.getReceivedCount()
+                    + " of " + totalNumOfPackets + " packets. " + transferCache);
+        }
 
-                // take time at beginning of loop
-                transferTimeStamp = System.currentTimeMillis();
+        /**
+         * keeps what an unfinished sliding window transfer got so the next connection to the
+         * robot can resume it. call with transferLock held
+         */
+        private void retainTransfer() {
+            if (window == null || update != null || !hasCapability(CAP_RESUME) || advertisedHash < 0
+                    || reassembler.getReceivedCount() == 0 || reassembler.isComplete()
+                    || !reassembler.isResumable()) {
+                return;
+            }
+            transferCache.retain(address, new TransferCache.Transfer(advertisedHash, syncBase,
+                    capabilities, getPacketSize(), reassembler, decoder));
+            Log.i("Controller.connection", address + " kept " + reassembler.getReceivedCount()
+                    + " of " + totalNumOfPackets + " packets. " + transferCache);
+            // belongs to the cache now
+            reassembler = null;
+        }
 
-                // sleep for a bit
-                try {
-                    sleep(100);
-                    //Log.i("transfer", "sleeping");
-                } catch (InterruptedException ex) {
-                }
+        /**
+         * called once every packet is in and the transfer has ended -> the payload has been
+         * decoded on the way, this picks up the result
+         * @return false if the payload could not be decoded
+         */
+        public boolean finishPayload() {
+            update = (reassembler.isIntact() ? decoder.getUpdate() : null);
+            statusHashValue = reassembler.getCrc();
+            if (update == null) {
+                Log.e("Controller.Read", address + " bad payload: " + (reassembler.isIntact() ? decoder.getError()
+                        : reassembler.hasTrailerMismatch() ? "crc " + Long.toHexString(reassembler.getCrc())
+                        + " doesn't match trailer " + Long.toHexString(reassembler.getTrailer())
+                        : "deflate stream broken"));
+            }
 
-                // take an interruptible lock
-                try {
-                    transferLock.lockInterruptibly();
-                } catch (InterruptedException ex) {
-                    Log.i("TransferStatusReview", "Closed while blocking");
+            if (window != null) {
+                // lost packets parity made up for against the ones the robot sent again
+                transferStats.recordRepairs(reassembler.getParityCount(), reassembler.getRecoveredCount(),
+                        window.getRepairCount());
+                if (hasCapability(CAP_FEC)) {
+                    Log.i("Controller.Read", address + " parity: " + reassembler.getParityCount()
+                            + ", recovered: " + reassembler.getRecoveredCount()
+                            + ", retransmitted: " + window.getRepairCount());
                 }
+            }
 
-                Log.i("TransferReview", (transferTimeStamp - notifyTimeStamp) + "");
+            if (reassembler.isDeflated()) {
+                // packets it would have taken uncompressed and the airtime that costs
+                int packets = reassembler.getTotalPackets();
+                int slotSize = getPacketSize() - getHeaderSize();
+                int packetsSaved = (reassembler.getPlainLength() + slotSize - 1) / slotSize - packets;
+                long millisSaved = packetsSaved * transferMillis / packets;
+                transferStats.recordCompression(reassembler.getLength(), reassembler.getPlainLength(), millisSaved);
+                Log.i("Controller.Read", address + " deflated: " + reassembler.getLength()
+                        + " of " + reassembler.getPlainLength() + " bytes, packets saved: " + packetsSaved
+                        + ", airtime saved(ms): " + millisSaved);
+            }
+            return update != null;
+        }
 
-                if ((transferTimeStamp - notifyTimeStamp) >= 250 && packetsFound.containsValue("")) {
-                    //TRANSFER FINISHED
+        /**
+         * @return true if the payload that just failed was damaged on the way -> worth streaming
+         * again while the link is up
+         */
+        public boolean canRefetch() {
+            return hasCapability(CAP_TRAILER) && refetchCount < MAX_REFETCHES && packetRead != null
+                    && !reassembler.isIntact();
+        }
 
-                    // gather missing packet numbers
-                    byte[] missedPackets = new byte[20];
-                    short byteIndex = 0;
-                    String bitString = "1"; // indicates missing packet list
-                    for (Integer i = 0; i < packetsFound.size(); i++) {
+        /**
+         * asks the robot to stream its payload again in this connection -> no new scan, connect,
+         * discovery or negotiation. called by readNotifications with transferLock held
+         * @return false if the robot didn't start streaming again
+         */
+        public boolean refetch() {
+            refetchCount++;
+            transferStats.recordRefetch();
+            disarmIdleCheck();
+            // leftovers of the failed stream
+            notifications.clear();
+            awaitingMissedPackets = false;
+
+            startTransfer();
+            byte[] packetCount = awaitOperation(gattQueue.read(packetRead), "Controller.refetch");
+            if (packetCount == null) {
+                return false;
+            }
+            totalNumOfPackets = ByteBuffer.wrap(packetCount).getInt() & ~SlidingWindow.RESUMED;
+            if (totalNumOfPackets < 1 || totalNumOfPackets > getMaxPackets()) {
+                return false;
+            }
+            update = null;
+            startPayload();
+            Log.i("Controller.refetch", address + " streaming " + totalNumOfPackets + " packets again, attempt "
+                    + refetchCount);
+            return true;
+        }
 
-                        if (bitString.length() == 8) {
-                            missedPackets[byteIndex] = (byte) Integer.parseInt(bitString, 2);
-                            byteIndex++;
-                            Log.i("TransferReview", "Missed packets: " + bitString);
-                            bitString = "";
-                        }
+        public boolean hasCapability(int capability) {
+            return (capabilities & capability) != 0;
+        }
 
-                        if (packetsFound.get(i).equals("")) {
-                            bitString += "1";
-                            //Log.i("Transfer null", packetsFound.get(i));
-                        } else {
-                            //Log.i("Transfer string", packetsFound.get(i));
-                            bitString += "0";
-                        }
+        /**
+         * @return most packets a payload can have with the agreed header
+         */
+        public int getMaxPackets() {
+            if (!hasCapability(CAP_SLIDING_WINDOW)) {
+                return Integer.MAX_VALUE;
+            }
+            return (hasCapability(CAP_FEC) ? SlidingWindow.MAX_PARITY_PACKETS : SlidingWindow.MAX_PACKETS);
+        }
 
-                    }
-                    // append 0's to remaining bits of last byte
-                    for (int i = bitString.length(); i < 8; i++) {
-                        bitString += "0";
-                    }
+        /**
+         * @return bytes in front of the payload of a packet from the robot
+         */
+        public int getHeaderSize() {
+            return (hasCapability(CAP_SLIDING_WINDOW) ? SlidingWindow.HEADER_SIZE : 1);
+        }
 
-                    missedPackets[byteIndex] = (byte) Integer.parseInt(bitString, 2);
+        /**
+         * @param size is the number of packets in the wave starting at waveStart
+         */
+        public void startWave(int size) {
+            waveSize = size;
+            gapDetector.startRound(size - 1);
+        }
 
-                    // write missing packet list back to server
-                    missingPacketWrite.setValue(missedPackets);
-                    currConnectedDevice.writeCharacteristic(missingPacketWrite);
+        /**
+         * asks the robot for the packets of this wave that are still missing.
+         * call with transferLock held
+         * @param timedOut is true if the robot went quiet, false if its round ended with holes
+         */
+        public void sendNack(boolean timedOut) {
+            byte[] missedPackets = gapDetector.buildNack(reassembler, waveStart, waveSize, timedOut);
+            Log.i("Controller.Nack", address + (timedOut ? " timed out, " : " gap, ")
+                    + "missing from " + (reassembler.nextMissing(waveStart) - waveStart));
+
+            // write missing packet list back to server
+            gattQueue.write(missingPacketWrite, missedPackets);
+
+            // expecting missed packets -> give up on them if the robot stays quiet
+            awaitingMissedPackets = true;
+            disarmIdleCheck();
+            armIdleCheck();
+        }
+
+        /**
+         * tells the robot how far a sliding window transfer got and what it has to resend.
+         * call with transferLock held
+         * @param timedOut is true if the robot went quiet
+         */
+        public void sendWindowAck(boolean timedOut) {
+            gattQueue.write(missingPacketWrite, window.buildAck(reassembler, timedOut));
+            if (timedOut) {
+                // give the robot time to answer before asking again
+                gapDetector.startRound(totalNumOfPackets - 1);
+                disarmIdleCheck();
+            }
+            armIdleCheck();
+        }
 
-                    //not alive!! let others know of your suicide.
-                    statusReviewOff = true;
+        /**
+         * makes sure a check runs once the current round should be over.
+         * call with transferLock held
+         */
+        public void armIdleCheck() {
+            if (idleCheck == null && !closed) {
+                scheduleIdleCheck(gapDetector.getDeadline() - System.currentTimeMillis());
+            }
+        }
 
-                    // stop loop
-                    keepAlive = false;
+        /**
+         * call with transferLock held
+         */
+        public void disarmIdleCheck() {
+            if (idleCheck != null) {
+                idleCheck.cancel();
+                idleCheck = null;
+            }
+        }
 
-                    // expecting missed packets
-                    awaitingMissedPackets = true;
+        private void scheduleIdleCheck(long delay) {
+            idleCheck = new TimerTask() {
+                @Override
+                public void run() {
+                    checkIdle(this);
                 }
+            };
+            idleTimer.schedule(idleCheck, Math.max(0, delay));
+        }
 
-                //release lock
+        /**
+         * runs on the idle timer -> sends a nack if the robot went quiet with packets missing
+         */
+        private void checkIdle(final TimerTask task) {
+            if (!transferLock.tryLock()) {
+                // notifications are being read -> robot is not quiet, look again later
+                idleTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        checkIdle(task);
+                    }
+                }, GapDetector.MIN_TIMEOUT);
+                return;
+            }
+            try {
+                if (task != idleCheck) {
+                    // disarmed or replaced by a newer check
+                    return;
+                }
+                idleCheck = null;
+                if (closed || reassembler == null || isWaveComplete()) {
+                    // wave done -> next packet arms a new check
+                    return;
+                }
+
+                long wait = gapDetector.getDeadline() - System.currentTimeMillis();
+                if (wait > 0) {
+                    // packets came in since this check was scheduled
+                    scheduleIdleCheck(wait);
+                } else if (window != null) {
+                    sendWindowAck(true);
+                } else {
+                    sendNack(true);
+                }
+            } finally {
                 transferLock.unlock();
             }
+        }
+
+        /**
+         * @return true if every packet of the current wave has arrived
+         */
+        public boolean isWaveComplete() {
+            return reassembler.isComplete(waveStart, waveStart + waveSize);
+        }
+
+        /**
+         * @return bytes per packet in either direction, header byte included
+         */
+        public int getPacketSize() {
+            return mtu - ATT_HEADER_SIZE;
+        }
+
+        /**
+         * moves the link to a short connection interval while the robot streams to us
+         */
+        public synchronized void startTransfer() {
+            if (gatt != null && gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH)) {
+                priorityBoosted = true;
+            }
+            transferStartedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * hands the link back to balanced priority and records the throughput of the transfer
+         */
+        public synchronized void endTransfer() {
+            if (priorityBoosted) {
+                gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+                priorityBoosted = false;
+            }
+            if (transferStartedAt != 0) {
+                transferMillis = System.currentTimeMillis() - transferStartedAt;
+                transferStartedAt = 0;
+                transferStats.recordTransfer(bytesReceived, transferMillis);
+            }
+        }
+
+        /**
+         * @return payload bytes per second of the finished transfer, 0 if there was none
+         */
+        public synchronized long getThroughput() {
+            return (transferMillis == 0 ? 0 : bytesReceived * 1000 / transferMillis);
+        }
 
+        /**
+         * ends the transfer and disconnects -> closed once the disconnect callback comes
+         */
+        public void disconnect() {
+            endTransfer();
+            if (gatt != null) {
+                gatt.disconnect();
+            }
         }
 
+        /**
+         * ends the transfer threads of this robot and closes its gatt server
+         */
         public void close() {
-            keepAlive = false;
-            statusReviewOff = true;
+            // end idle checks if we disconnected during transfer process
+            closed = true;
+
+            // end notification read (safety if we disconnect during transfer)
+            if (readNotifications != null) {
+                readNotifications.close();
+            }
+            notifications.close();
+            // cancel anything still queued if we disconnected abruptly. done before taking
+            // transferLock -> a refetch waiting on a read under the lock gives up right away
+            gattQueue.close();
+
+            transferLock.lock();
+            try {
+                disarmIdleCheck();
+                retainTransfer();
+            } finally {
+                transferLock.unlock();
+            }
+            update = null;
+
+            replyAckBlock.clear();
+            endTransfer();
+            Log.i("Controller.connection", address + " mtu: " + mtu
+                    + ", notifications: " + notificationCount + " (" + notifications + "), bytes: " + bytesReceived
+                    + ", throughput(B/s): " + getThroughput() + ", " + gapDetector
+                    + (window != null ? ", " + window : "")
+                    + ", gatt operations: " + gattQueue);
+
+            if (gatt != null) {
+                gatt.close();
+            }
+        }
+    }
+
+    /**
+     * reads the capability bits of the robot and writes back the ones both sides speak.
+     * robots without the characteristic (or failing either step) stay on the legacy protocol
+     * @param connection is the robot being set up
+     * @param capabilitiesChara is its Capabilities characteristic, null if it has none
+     */
+    private void negotiateCapabilities(RobotConnection connection,
+                                       BluetoothGattCharacteristic capabilitiesChara) {
+        connection.capabilities = 0;
+        if (capabilitiesChara == null) {
+            return;
+        }
+
+        byte[] offered = awaitOperation(connection.gattQueue.read(capabilitiesChara), "negotiateCapabilities()");
+        if (offered == null || offered.length < 1) {
+            return;
+        }
+
+        int capabilities = offered[0] & SUPPORTED_CAPABILITIES;
+        if ((capabilities & CAP_SLIDING_WINDOW) == 0 || connection.rssi > FEC_MAX_RSSI) {
+            // parity rides on the sliding window header and only pays off on a weak link
+            capabilities &= ~CAP_FEC;
         }
+
+        // agreed capabilities followed by the window size we can take (and the parity group size)
+        byte[] agreed = new byte[(capabilities & CAP_FEC) != 0 ? 3 : 2];
+        agreed[0] = (byte) capabilities;
+        agreed[1] = (byte) SlidingWindow.WINDOW_SIZE;
+        if (agreed.length > 2) {
+            agreed[2] = (byte) SlidingWindow.PARITY_GROUP;
+        }
+        if (awaitOperation(connection.gattQueue.write(capabilitiesChara, agreed), "negotiateCapabilities()") != null) {
+            connection.capabilities = agreed[0] & 0xFF;
+        }
+        Log.i("negotiateCapabilities()", connection.address + " offered: " + (offered[0] & 0xFF)
+                + ", agreed: " + connection.capabilities);
+    }
+
+    /**
+     * tells the robot the status hash and newest progression message we hold.
+     * with CAP_CONDITIONAL a robot whose status still has that hash has 0 packets to send, with
+     * CAP_DELTA it streams only the progression elements that are new or changed since. robots
+     * that don't have that status anymore answer with their full payload
+     * @param connection is the robot being set up
+     * @param syncRequest is its Sync Request characteristic, null if it has none
+     */
+    private void sendSyncRequest(RobotConnection connection, BluetoothGattCharacteristic syncRequest) {
+        connection.syncBase = -1;
+        if (syncRequest == null || !(connection.hasCapability(CAP_DELTA) || connection.hasCapability(CAP_CONDITIONAL))
+                || fullSyncNeeded.remove(connection.address)) {
+            return;
+        }
+
+        long base;
+        String lastMessageId;
+        theModelLock.lock();
+        try {
+            Robot bot = findRobot(connection.address);
+            if (bot == null || bot.getName() == null) {
+                // never had an update from this robot
+                return;
+            }
+            base = bot.getStatusHashValue();
+            lastMessageId = bot.getLastMessageId();
+        } finally {
+            theModelLock.unlock();
+        }
+
+        // status hash (4 bytes, big endian) followed by the msgid
+        byte[] msgId = (lastMessageId == null ? "" : lastMessageId).getBytes(StandardCharsets.UTF_8);
+        if (4 + msgId.length > connection.getPacketSize()) {
+            // a cut msgid would name the wrong element -> no request, full sync
+            Log.i("sendSyncRequest()", connection.address + " msgid too long for a sync request");
+            return;
+        }
+        byte[] request = new byte[4 + msgId.length];
+        request[0] = (byte) (base >> 24);
+        request[1] = (byte) (base >> 16);
+        request[2] = (byte) (base >> 8);
+        request[3] = (byte) base;
+        System.arraycopy(msgId, 0, request, 4, msgId.length);
+
+        if (awaitOperation(connection.gattQueue.write(syncRequest, request), "sendSyncRequest()") != null) {
+            connection.syncBase = base;
+        }
+    }
+
+    /**
+     * offers a robot the transfer we kept from a connection that dropped halfway. with CAP_RESUME
+     * a robot whose payload is still the same only streams the packets we are missing
+     * @param connection is the robot being set up
+     * @return the kept transfer if the robot was offered it, null otherwise
+     */
+    private TransferCache.Transfer requestResume(RobotConnection connection) {
+        if (!connection.hasCapability(CAP_RESUME) || !connection.hasCapability(CAP_SLIDING_WINDOW)
+                || connection.advertisedHash < 0) {
+            return null;
+        }
+        TransferCache.Transfer kept = transferCache.take(connection.address, connection.advertisedHash,
+                connection.syncBase, connection.capabilities, connection.getPacketSize());
+        if (kept == null) {
+            return null;
+        }
+
+        byte[] request = SlidingWindow.buildResume(kept.getReassembler(), kept.getHash(), connection.getPacketSize());
+        if (awaitOperation(connection.gattQueue.write(connection.missingPacketWrite, request), "requestResume()") == null) {
+            kept.release();
+            return null;
+        }
+        return kept;
     }
 
     /**
      * * makes a robot and adds it to our copy of the model
      * * takes care of enabling notifications
+     * @param connection is the robot whose services have been discovered
      */
-    private void makeRobot() {
+    private void makeRobot(RobotConnection connection) {
 
         try {
+            // ask for bigger packets. robots that don't support it stay at the default mtu
+            awaitOperation(connection.gattQueue.requestMtu(PREFERRED_MTU), "makeRobot()");
+            Log.i("makeRobot()", "Packet size: " + connection.getPacketSize());
+
             //ArrayList<BluetoothGattCharacteristic> allSupportedCharacteristics = new ArrayList<>();
-            ArrayList<BluetoothGattService> serviceList = (ArrayList<BluetoothGattService>)currConnectedDevice.getServices();
+            ArrayList<BluetoothGattService> serviceList = (ArrayList<BluetoothGattService>)connection.gatt.getServices();
 
             // characteristic we read from to start notifications
             BluetoothGattCharacteristic packetRead = null;
@@ -1610,6 +2176,12 @@ public class ControllerService extends Service {
             // characteristic that indicates missed packets
             BluetoothGattCharacteristic missingPacketRead = null;
 
+            // characteristic that tells which protocol extensions the robot speaks
+            BluetoothGattCharacteristic capabilitiesChara = null;
+
+            // characteristic we tell what we already hold before the robot streams
+            BluetoothGattCharacteristic syncRequest = null;
+
             // get all supported characteristics from the services
             for (BluetoothGattService service : serviceList) {
 
@@ -1653,15 +2225,19 @@ public class ControllerService extends Service {
 
 
                             if (supportedCharas.get(uuidOfCharacteristic).equals("Total Number of Packets")) {
-                                totalNumOfPacketsWrite = chara;
+                                connection.totalNumOfPacketsWrite = chara;
                             } else if (supportedCharas.get(uuidOfCharacteristic).equals("Packet Write")) {
-                                packetWrite = chara;
+                                connection.packetWrite = chara;
                             } else if (supportedCharas.get(uuidOfCharacteristic).equals("Missing Packet Write")) {
-                                missingPacketWrite = chara;
+                                connection.missingPacketWrite = chara;
                             } else if (supportedCharas.get(uuidOfCharacteristic).equals("Packet Read")) {
                                 packetRead = chara;
                             } else if (supportedCharas.get(uuidOfCharacteristic).equals("Missing Packet Read")) {
                                 missingPacketRead = chara;
+                            } else if (supportedCharas.get(uuidOfCharacteristic).equals("Capabilities")) {
+                                capabilitiesChara = chara;
+                            } else if (supportedCharas.get(uuidOfCharacteristic).equals("Sync Request")) {
+                                syncRequest = chara;
                             }
 
                             //allSupportedCharacteristics.add(chara);
@@ -1670,31 +2246,39 @@ public class ControllerService extends Service {
                 }
             }
 
+            // agree on protocol extensions before anything is streamed
+            negotiateCapabilities(connection, capabilitiesChara);
+
             //boolean sentReply = false; //patch fix
             // handle reply to robot if there is one in the reply queue
             replyQueueLock.lock();
             if (!(replyQueue.isEmpty())) {
-                if ((replyQueue.get(0).getRobotId()).equals(currConnectedDevice.getDevice().getAddress())) {
+                if ((replyQueue.get(0).getRobotId()).equals(connection.gatt.getDevice().getAddress())) {
 
                     // get reply package
                     ReplyPackage replyPackage = replyQueue.remove(0);
                     replyQueueLock.unlock();
 
                     //enable indications
-                    subscribe(missingPacketRead, true, 1, currConnectedDevice);
-                    try {
-                        makeRobotBlock.take();
-                    } catch (InterruptedException ex) {
-                        Log.e("makeRobot()", "failed to take from blocking queue");
-                    }
+                    awaitOperation(subscribe(missingPacketRead, true, 1, connection), "makeRobot()");
 
                     // call handleReplyMessage to send reply to robot
-                    handleReplyMessage(replyPackage);
+                    handleReplyMessage(connection, replyPackage);
                     // when server has confirmed it received the entire message
+                    Integer ack = null;
                     try {
-                        makeRobotBlock.take();
-                    } catch (Exception ex) {
-                        Log.e("makeRobot()", "failed to take from blocking queue");
+                        ack = connection.replyAckBlock.poll(REPLY_ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ex) {
+                        Log.e("makeRobot()", "interrupted waiting for reply confirmation");
+                    }
+                    if (ack == null) {
+                        // try again on the next connection
+                        Log.e("makeRobot()", "reply was not confirmed");
+                        replyQueueLock.lock();
+                        replyQueue.add(0, replyPackage);
+                        replyQueueLock.unlock();
+                        connection.disconnect();
+                        return;
                     }
                     //sentReply = true; // patch fix
                     replyQueueLock.lock();
@@ -1712,20 +2296,69 @@ public class ControllerService extends Service {
 
 
             //enable notifications
-            subscribe(packetRead, true, 0, currConnectedDevice);
-            try {
-                makeRobotBlock.take();
-            } catch (InterruptedException ex) {Log.e("makeRobot()", "failed to take from blocking queue");Log.e("makeRobot()", "failed to take from blocking queue");
-                Log.e("makeRobot()", "failed to take from blocking queue");
+            if (awaitOperation(subscribe(packetRead, true, 0, connection), "makeRobot()") == null) {
+                connection.disconnect();
+                return;
             }
+            // read again to re-fetch a damaged payload
+            connection.packetRead = packetRead;
+
+            // only ask for what changed if we hold an earlier update
+            sendSyncRequest(connection, syncRequest);
+
+            // offer the packets an earlier connection got before it dropped
+            TransferCache.Transfer kept = requestResume(connection);
+
+            // robot starts streaming once we read -> shorten the connection interval first
+            connection.startTransfer();
 
             // read packetRead characteristic to start notifications
-            if (currConnectedDevice.readCharacteristic(packetRead)) {
-                try {
-                    makeRobotBlock.take();
-                } catch (Exception ex) {
-                    Log.e("makeRobot()", "failed to take from blocking queue");
+            byte[] packetCount = awaitOperation(connection.gattQueue.read(packetRead), "makeRobot()");
+            if (packetCount == null) {
+                if (kept != null) {
+                    kept.release();
                 }
+                connection.disconnect();
+                return;
+            }
+            int count = ByteBuffer.wrap(packetCount).getInt();
+            boolean resumed = connection.hasCapability(CAP_RESUME) && (count & SlidingWindow.RESUMED) != 0;
+            connection.totalNumOfPackets = (resumed ? count & ~SlidingWindow.RESUMED : count);
+            if (kept != null && (!resumed || kept.getReassembler().getTotalPackets() != connection.totalNumOfPackets)) {
+                // robot streams its payload from the start
+                kept.release();
+                kept = null;
+            }
+            if (resumed && kept == null) {
+                // robot would only stream packets we don't hold anymore
+                Log.e("makeRobot()", connection.address + " resumed a transfer we didn't keep");
+                connection.disconnect();
+                return;
+            }
+
+            if (connection.totalNumOfPackets == 0 && connection.syncBase != -1
+                    && connection.hasCapability(CAP_CONDITIONAL)) {
+                // not modified -> what we hold is current, nothing to stream
+                long timeToFresh = connectionScheduler.synced(connection.address);
+                long millis = System.currentTimeMillis() - connection.connectedAt;
+                transferStats.recordNotModified(millis);
+                Log.i("makeRobot()", connection.address + " not modified in " + millis + "ms, time to fresh(ms): "
+                        + timeToFresh + ". " + transferStats);
+                connection.disconnect();
+                return;
+            }
+
+            //if this happens then get out!
+            if (connection.totalNumOfPackets < 1 || connection.totalNumOfPackets > connection.getMaxPackets()) {
+                connection.disconnect();
+                return;
+            }
+
+            // initialize buffer with correct number of packets wanted
+            if (kept != null) {
+                connection.resumePayload(kept);
+            } else {
+                connection.startPayload();
             }
 
 
@@ -1829,45 +2462,15 @@ public class ControllerService extends Service {
         }
         */
 
-            // says if robot is already known to the model
-            boolean alreadyContained = false;
-            modelLock.lock();
-            model = getModel();
-            // check if current robot is already in our model
-            for (Robot bot : model) {
-                if (bot.getId().equals(currConnectedDevice.getDevice().getAddress())) {
-                    int index = model.indexOf(bot);
-                    Robot robotPrime = (Robot)bot.clone();
-                    robotPrime.setProximity(robotsAsBTDevices.get(currConnectedDevice.getDevice()));
-                    robotPrime.setVisible(isCurrRobotVisible);
-                    model.set(index, robotPrime);
-                    alreadyContained = true;
-                    if (bot.isVisible() && !isCurrRobotVisible) {
-                        Log(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss")
-                                .format(new Date())
-                                + ",SETHIDDEN,"
-                                + bot.getName());
-                    } else if (!bot.isVisible() && isCurrRobotVisible) {
-                        Log(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss")
-                                .format(new Date())
-                                + ",SETVISIBLE,"
-                                + bot.getName());
-                    }
-                    break;
-                }
-            }
-            modelLock.unlock();
-
-            if (!alreadyContained) {
+            // update the robot if it is already known to the model
+            String addressOfRobot = connection.address;
+            int rssi = connection.rssi;
+            if (!updateSighting(addressOfRobot, rssi, connection.visible)) {
                 // this is a new robot
                 // setting robot name, rssi (proximity) and ID
-                Robot robot = new Robot(robotsAsBTDevices.get(currConnectedDevice.getDevice()),
-                        currConnectedDevice.getDevice().getAddress());
-                robot.setVisible(isCurrRobotVisible);
+                connection.newRobot = new Robot(rssi, addressOfRobot);
+                connection.newRobot.setVisible(connection.visible);
                 //robot.setImage(R.drawable.svg_neato); //TEMPORARY
-                modelLock.lock();
-                model.add(robot);
-                modelLock.unlock();
             }
 
         } catch (NullPointerException ex) {
@@ -1879,8 +2482,8 @@ public class ControllerService extends Service {
         }
 
         // thread for reading notifications
-        readNotifications = new ReadNotifications();
-        readNotifications.start();
+        connection.readNotifications = new ReadNotifications(connection);
+        connection.readNotifications.start();
         Log.i("Controller.makeRobot()", "Finished");
     }
 
@@ -1890,17 +2493,18 @@ public class ControllerService extends Service {
      * @param characteristic   will have its notify descriptor turned on or off
      * @param enable           specifies to enable or disable notification
      * @param notifyOrIndicate specifies an indication or notification: notify = 0, indicate = 1
-     * @param gatt             is server of robot
+     * @param connection       is the robot
+     * @return the queued descriptor write or null if there is no gatt server
      */
-    private void subscribe(BluetoothGattCharacteristic characteristic,
-                           boolean enable, int notifyOrIndicate, BluetoothGatt gatt) {
+    private GattOperationQueue.Operation subscribe(BluetoothGattCharacteristic characteristic,
+                           boolean enable, int notifyOrIndicate, RobotConnection connection) {
 
-        if (gatt == null) {
+        if (connection.gatt == null) {
             Log.i("Controller.subscribe()", "gatt server is null");
-            return;
+            return null;
         }
         // gatt server needs to know to notify or not
-        gatt.setCharacteristicNotification(characteristic, enable);
+        connection.gatt.setCharacteristicNotification(characteristic, enable);
 
         // characteristic needs to know to notify or not
 
@@ -1909,50 +2513,60 @@ public class ControllerService extends Service {
         UUID descripUuid = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
 
+        byte[] value;
         if (notifyOrIndicate == 0) {
             //setting Notification value
-            (characteristic.getDescriptor(descripUuid)).setValue((enable ?
+            value = (enable ?
                     BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE :
-                    BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE));
+                    BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
         } else {
             //setting Indication value
-            (characteristic.getDescriptor(descripUuid)).setValue((enable ?
+            value = (enable ?
                     BluetoothGattDescriptor.ENABLE_INDICATION_VALUE :
-                    BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE));
+                    BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
         }
 
 
         //write descriptor - received in callback onDescriptorWrite
-        gatt.writeDescriptor(characteristic.getDescriptor(descripUuid));
+        return connection.gattQueue.writeDescriptor(characteristic.getDescriptor(descripUuid), value);
+    }
+
+    /**
+     * waits for a queued gatt operation to finish
+     * @param operation is the queued operation, null is treated as failed
+     * @param tag is used for logging a failure
+     * @return value read or written, null if the operation failed, timed out or was cancelled
+     */
+    private byte[] awaitOperation(GattOperationQueue.Operation operation, String tag) {
+        if (operation == null) {
+            return null;
+        }
+        try {
+            return operation.get();
+        } catch (Exception ex) {
+            Log.e(tag, operation.getType() + " failed: " + ex);
+            return null;
+        }
     }
     /**
      * **useful for initial reads**
      * checks format types to determine how to interpret the characteristic's value
      *
+     * @param connection is the robot the characteristic belongs to
      * @param chara is the characteristic
      * @return string representation of the characteristic value
      */
-    private String getCharaValue(BluetoothGattCharacteristic chara) {
+    private String getCharaValue(RobotConnection connection, BluetoothGattCharacteristic chara) {
 
         if (chara.getUuid().toString().equals("00002a10-30de-4630-9b59-27228d45bf11")) {
 
             // grabbing initial value in characteristic which says how many packets total
             // there are to be sent
-            int totalNumOfPackets = java.nio.ByteBuffer.wrap(chara.getValue()).getInt();
+            int totalNumOfPackets = ByteBuffer.wrap(chara.getValue()).getInt();
             Log.i("getCharaValue", ((Integer)totalNumOfPackets).toString());
-            // initialize map with correct number of packets wanted
-            if (totalNumOfPackets >= 128) {
-
-                for (int i = 0; i < 128; i++) {
-                    packetsFound.put(i, "");
-                }
-
-            } else {
-
-                for (int i = 0; i < totalNumOfPackets; i++) {
-                    packetsFound.put(i, "");
-                }
-            }
+            // initialize buffer with correct number of packets wanted
+            connection.totalNumOfPackets = totalNumOfPackets;
+            connection.startPayload();
 
             return ((Integer)totalNumOfPackets).toString();
 
@@ -1973,53 +2587,51 @@ public class ControllerService extends Service {
      */
     private class ReadNotifications extends Thread {
 
-        private boolean keepAlive = true;
+        private volatile boolean keepAlive = true;
+        private final RobotConnection connection; // robot whose notifications are read
+        private final byte[] rawPacket; // notification being handled -> reused for every packet
+
+        public ReadNotifications(RobotConnection connection) {
+            this.connection = connection;
+            this.rawPacket = new byte[connection.notifications.getSlotSize()];
+        }
 
         @Override
         public void run() {
 
             while (keepAlive) {
 
-                notificationQueueLock.lock();
+                // parks until the robot sends something
+                int length = connection.notifications.take(rawPacket);
 
-                while (notificationQueue.isEmpty() && keepAlive) {
-                    Log.i("Controller.Read", "Queue is empty: " + notificationQueue.size());
-                    notificationQueueLock.unlock();
-                    try {
-                        sleep(10);
-                    } catch (Exception ex) {
-                        Log.e("Controller.Read", "Failed sleep");
-                    }
-                    notificationQueueLock.lock();
-                }
+                if (length > 0 && keepAlive) {
 
-                if (keepAlive) {
+                    // take lock - this characteristic is sending an update
+                    connection.transferLock.lock();
+                    if (connection.closed) {
+                        // transfer may belong to the transfer cache by now
+                        connection.transferLock.unlock();
+                        break;
+                    }
 
-                    //Log.i("Controller.Read", "Starting notif read: " + notificationQueue.size());
+                    // robot is still talking
+                    connection.gapDetector.arrived(System.currentTimeMillis());
 
-                    // update time stamp
-                    notifyTimeStamp = System.currentTimeMillis();
+                    connection.notificationCount++;
+                    connection.bytesReceived += length - connection.getHeaderSize();
 
-                    // take lock - this characteristic is sending an update
-                    transferLock.lock();
-
-                    // check if our transfer review is off
-                    if (statusReviewOff) {
-                        // turn it on
-                        statusReview = new TransferStatusReview();
-                        statusReview.start();
-                        statusReviewOff = false;
+                    if (connection.window != null) {
+                        handleWindowPacket(length);
+                        connection.transferLock.unlock();
+                        continue;
                     }
 
-                    byte rawPacket[] = notificationQueue.remove(0);
-                    notificationQueueLock.unlock();
-
                     // getting missing packet flag value
                     int missingFlag = (rawPacket[0] & 0x80);
 
                     //
-                    if ((missingFlag == 128 && awaitingMissedPackets) ||
-                            missingFlag == 0 && !awaitingMissedPackets) {
+                    if ((missingFlag == 128 && connection.awaitingMissedPackets) ||
+                            missingFlag == 0 && !connection.awaitingMissedPackets) {
 
 
                         // getting packet number data
@@ -2027,68 +2639,29 @@ public class ControllerService extends Service {
 
                         //testTotal += 1;
                         Log.i("Controller.Read", "Packet number: " + packetNum);
-                        Log.i("Controller.Read", "Total Number of Packets: " + totalNumOfPackets);
-                        // getting json data
-                        byte json[] = new byte[rawPacket.length - 1];
-                        System.arraycopy(rawPacket, 1, json, 0, (rawPacket.length - 1));
-
-                        packetsFound.put(packetNum, new String(json));
+                        Log.i("Controller.Read", "Total Number of Packets: " + connection.totalNumOfPackets);
+                        // copy json data straight into its slot -> packets outside this wave are stray
+                        if (packetNum < connection.waveSize) {
+                            connection.reassembler.put(connection.waveStart + packetNum, rawPacket, 1, length - 1);
+                        }
 
                         // check to see if all packets in current wave are buffered
-                        if (!packetsFound.containsValue("")) {
+                        if (!connection.isWaveComplete()) {
+                            if (connection.gapDetector.isRoundOver(packetNum)) {
+                                // robot sent everything it was going to -> holes left are losses
+                                connection.sendNack(false);
+                            } else {
+                                connection.armIdleCheck();
+                            }
+                        } else {
                             // set awaitingMissedPackets to false
-                            awaitingMissedPackets = false;
+                            connection.awaitingMissedPackets = false;
+                            connection.disarmIdleCheck();
 
                             //Log.i("Controller.Read", "no null found");
 
-                            // if here then all packets have been found
-                            // start appending strJSON
-
-                            //Log.i("Controller.Read", "size: " + packetsFound.size());
-
-                            for (Integer i = 0; i < packetsFound.size(); i++) {
-
-                                // quick fix to check for interesting null packets
-                                //if (packetsFound.get(i).equals("")) {
-                                //continue;
-                                //}
-
-                    /*
-                    //if stringJPEG contains no textual content of characteristic yet
-                    if (strJSON == null) {
-                        if (packetsFound.get(i).substring(0, 3).equals("$$$")) {
-                            strJSON = packetsFound.get(i).substring(3);
-                            Log.i("handleJPEG()", "Started JSON string");
-                        }
-                        Log.i("handleJPEG()", packetsFound.get(i));
-
-                    } else {
-                        Log.i("handleJPEG()", "Size: " + packetsFound.size());
-                        Log.i("handleJPEG()", "i: " + i);
-                        Log.i("handleJPEG()", "Content at i: " + packetsFound.get(i));
-                        int start = (packetsFound.get(i).length() - 3);
-                        int end = packetsFound.get(i).length();
-
-                        if (packetsFound.get(i).substring(start, end).equals("$$$")) {
-
-                            strJSON += packetsFound.get(i).substring(0, start);
-                            // end of JSON
-
-                        } else {
-                            //Log.i("handleJPEG()", "adding: " + packetsFound.get(i));
-                            strJSON += packetsFound.get(i);
-
-                        }
-                    }
-                    */
-
-                                if (null == strJSON) {
-                                    strJSON = packetsFound.get(i);
-                                } else {
-                                    strJSON += packetsFound.get(i);
-                                }
-                                Log.i("Controller.Read", strJSON);
-                            }
+                            // if here then all packets of this wave have been found
+                            // -> payload stays in the buffer until the last wave is in
 
                             // using RobotCharacteristic's charaValue to keep track of how many packets are left
                             // note: there is no writing to the characteristic and the value stored is local
@@ -2103,70 +2676,123 @@ public class ControllerService extends Service {
                             String bitString = "0"; // indicates success
                             successMessage[0] = (byte) Integer.parseInt(bitString, 2);
 
-                            missingPacketWrite.setValue(successMessage);
-                            currConnectedDevice.writeCharacteristic(missingPacketWrite);
+                            GattOperationQueue.Operation successWrite =
+                                    connection.gattQueue.write(connection.missingPacketWrite, successMessage);
 
-                            totalNumOfPackets = (totalNumOfPackets - packetsFound.size());
+                            connection.totalNumOfPackets = (connection.totalNumOfPackets - connection.waveSize);
 
-                            // set up map with correct number of packets wanted
-                            packetsFound.clear();
-                            if (totalNumOfPackets >= 128) {
-                                statusReview.close();
-                                notificationQueue.clear();
+                            // set up next wave with correct number of packets wanted
+                            connection.waveStart += connection.waveSize;
+                            if (connection.totalNumOfPackets >= 128) {
+                                connection.notifications.clear();
                                 Log.i("Controller.Read", "Before block: 128");
-                                try {
-                                    characteristicWriteBlock.take();
-                                } catch (Exception ex) {
-
-                                }
+                                awaitOperation(successWrite, "Controller.Read");
                                 Log.i("Controller.Read", "After block: 128");
-                                for (int i = 0; i < 128; i++) {
-                                    packetsFound.put(i, "");
-                                }
+                                connection.startWave(WAVE_SIZE);
 
-                            } else if (totalNumOfPackets == 0) {
+                            } else if (connection.totalNumOfPackets == 0) {
 
                                 //Log.i("Controller.Read", "Ended JSON string");
                                 //Log.i("json", strJSON);
-                                statusReview.close();
-                                close();
-                                notificationQueue.clear();
+                                connection.notifications.clear();
                                 // make sure characteristic has been written to
                                 Log.i("Controller.Read", "Before block: 0");
-                                try {
-                                    characteristicWriteBlock.take();
-                                } catch (Exception ex) {}
+                                awaitOperation(successWrite, "Controller.Read");
                                 Log.i("Controller.Read", "After block: 0");
-                                sendBroadcast(new Intent().setAction(UPDATE_COMPLETE));
+                                // nothing left to stream
+                                connection.endTransfer();
+                                // whole payload is here and decoded
+                                if (connection.finishPayload()) {
+                                    close();
+                                    Log.i("Controller.Read", connection.update.toString());
+                                    sendBroadcast(new Intent().setAction(UPDATE_COMPLETE)
+                                            .putExtra(EXTRA_ADDRESS, connection.address));
+                                } else {
+                                    payloadFailed();
+                                }
 
                             } else {
-                                statusReview.close();
-                                notificationQueue.clear();
+                                connection.notifications.clear();
                                 Log.i("Controller.Read", "Before block: <128");
-                                try {
-                                    characteristicWriteBlock.take();
-                                } catch (Exception ex) {}
+                                awaitOperation(successWrite, "Controller.Read");
                                 Log.i("Controller.Read", "After block: <128");
-                                for (int i = 0; i < totalNumOfPackets; i++) {
-                                    packetsFound.put(i, "");
-                                }
+                                connection.startWave(connection.totalNumOfPackets);
                             }
 
                         }
                     }
 
                     // release lock
-                    transferLock.unlock();
+                    connection.transferLock.unlock();
                 }
             }
 
-            if (notificationQueueLock.isHeldByCurrentThread()) {
-                notificationQueueLock.unlock();
+        }
+
+        /**
+         * puts a packet of a sliding window transfer in place and acks when it is time to.
+         * called with transferLock held
+         * @param length is the number of bytes in rawPacket
+         */
+        private void handleWindowPacket(int length) {
+            boolean ackDue;
+            if (connection.hasCapability(CAP_FEC) && SlidingWindow.isParity(rawPacket)) {
+                // may rebuild a lost packet of its group
+                int group = SlidingWindow.getGroup(rawPacket);
+                // a parity we already have or that isn't ours says nothing new about its group
+                ackDue = connection.reassembler.putParity(group, rawPacket, SlidingWindow.HEADER_SIZE,
+                        length - SlidingWindow.HEADER_SIZE)
+                        && connection.window.parityArrived(group, connection.reassembler.isGroupComplete(group));
+            } else {
+                int sequence = SlidingWindow.getSequence(rawPacket);
+                connection.reassembler.put(sequence, rawPacket, SlidingWindow.HEADER_SIZE,
+                        length - SlidingWindow.HEADER_SIZE);
+                ackDue = connection.window.arrived(sequence, SlidingWindow.isRepair(rawPacket));
             }
+
+            if (!connection.reassembler.isComplete()) {
+                if (ackDue) {
+                    connection.sendWindowAck(false);
+                } else {
+                    connection.armIdleCheck();
+                }
+                return;
+            }
+
+            // every packet is in -> final ack tells the robot to stop
+            connection.disarmIdleCheck();
+            GattOperationQueue.Operation finalAck = connection.gattQueue.write(connection.missingPacketWrite,
+                    connection.window.buildAck(connection.reassembler, false));
+            connection.notifications.clear();
+            awaitOperation(finalAck, "Controller.Read");
+            // nothing left to stream
+            connection.endTransfer();
+            if (!connection.finishPayload()) {
+                payloadFailed();
+                return;
+            }
+            close();
+            Log.i("Controller.Read", connection.update.toString());
+            sendBroadcast(new Intent().setAction(UPDATE_COMPLETE)
+                    .putExtra(EXTRA_ADDRESS, connection.address));
+        }
+
+        /**
+         * a payload damaged on the way is streamed again while the link is up, anything else
+         * ends the connection. called with transferLock held
+         */
+        private void payloadFailed() {
+            if (connection.canRefetch() && connection.refetch()) {
+                // keep reading -> the new stream lands in a fresh reassembler
+                return;
+            }
+            close();
+            connection.disconnect();
         }
 
         public void close() {
             keepAlive = false;
+            connection.notifications.close();
         }
     }
 
@@ -2251,55 +2877,34 @@ public class ControllerService extends Service {
 
     /**
      * responsible for sending reply message to server
+     * @param connection is the robot the reply goes to
      * @param replyPackage contains the unique contents for the reply
      */
-    private void handleReplyMessage(ReplyPackage replyPackage) {
+    private void handleReplyMessage(RobotConnection connection, ReplyPackage replyPackage) {
         final String TAG = "Controller.reply()";
 
         /**
-         * prepare json reply
+         * binary reply -> fits in one packet
          */
-        JSONObject jsonReply = new JSONObject();
-        try {
-            jsonReply.put("msgtype", "reply");
-
-            JSONObject msgIdAndResponseId = new JSONObject();
-            msgIdAndResponseId.put("id", replyPackage.getMsgId());
-            msgIdAndResponseId.put("value", replyPackage.getResponseId());
-
-            JSONArray responsesArray = new JSONArray();
-            responsesArray.put(0, msgIdAndResponseId);
-
-            jsonReply.put("responses", responsesArray);
-
-            Log.i(TAG, jsonReply.toString(2));
-        } catch (JSONException ex) {
-            StringWriter stringWriter = new StringWriter();
-            PrintWriter printWriter = new PrintWriter(stringWriter, true);
-            ex.printStackTrace(printWriter);
-            Log.e(TAG, stringWriter.toString());
+        byte[] byteReply;
+        if (connection.hasCapability(CAP_BINARY)) {
+            byteReply = WireFormat.encodeReply(replyPackage.getMsgId(), replyPackage.getResponseId());
+        } else {
+            byteReply = buildJsonReply(replyPackage);
         }
-
-        /**
-         * convert reply into byte array
-         */
-        byte[] byteReply = (jsonReply.toString().getBytes(StandardCharsets.UTF_8));
         Log.i(TAG, byteReply.length + ", is the length of byte array");
 
         /**
-         * send total number of packets to server
+         * send total number of packets to server -> packets are as big as the mtu allows,
+         * one byte of each is the packet number
          */
-        int totalNumberOfPackets = (int) Math.ceil(((double) byteReply.length / 19));
+        int packetSize = connection.getPacketSize();
+        int dataSize = packetSize - 1;
+        int totalNumberOfPackets = (int) Math.ceil(((double) byteReply.length / dataSize));
         Log.i(TAG, totalNumberOfPackets + " is the number of packets going to be sent");
 
         byte[] byteTotal = {(byte) (totalNumberOfPackets & 0xFF)};
-        totalNumOfPacketsWrite.setValue(byteTotal);
-        currConnectedDevice.writeCharacteristic(totalNumOfPacketsWrite);
-        try {
-            characteristicWriteBlock.take();
-        } catch (InterruptedException ex) {
-            Log.e(TAG, "Failed to take from blocking queue");
-        }
+        awaitOperation(connection.gattQueue.write(connection.totalNumOfPacketsWrite, byteTotal), TAG);
         Log.i(TAG, byteTotal[0] + " after block");
 
 
@@ -2309,49 +2914,68 @@ public class ControllerService extends Service {
         int totalNumOfBytes = byteReply.length;
         for (int i = 0; i < totalNumberOfPackets; i++) {
 
-            if (totalNumOfBytes >= 20) {
-                byte[] packetSend = new byte[20];
+            if (totalNumOfBytes >= packetSize) {
+                byte[] packetSend = new byte[packetSize];
                 packetSend[0] = (byte) (i & 0xFF);
-                System.arraycopy(byteReply, i * 19, packetSend, 1, (packetSend.length - 1));
-                Log.i(TAG, new String(packetSend));
+                System.arraycopy(byteReply, i * dataSize, packetSend, 1, (packetSend.length - 1));
+                Log.i(TAG, "packet " + i + ": " + packetSend.length + " bytes");
 
-                outgoingPackets.put(i, packetSend);
-                packetWrite.setValue(packetSend);
-                currConnectedDevice.writeCharacteristic(packetWrite);
-                try {
-                    characteristicWriteBlock.take();
-                } catch (InterruptedException ex) {
-                    Log.e(TAG, "Failed to take from blocking queue");
-                }
+                connection.outgoingPackets.put(i, packetSend);
+                awaitOperation(connection.gattQueue.write(connection.packetWrite, packetSend), TAG);
 
-                totalNumOfBytes = (totalNumOfBytes - 19);
+                totalNumOfBytes = (totalNumOfBytes - dataSize);
 
             } else {
 
                 byte[] packetSend = new byte[totalNumOfBytes + 1];
                 packetSend[0] = (byte) (i & 0xFF);
-                System.arraycopy(byteReply, i * 19, packetSend, 1, (packetSend.length - 1));
-                Log.i(TAG, new String(packetSend));
+                System.arraycopy(byteReply, i * dataSize, packetSend, 1, (packetSend.length - 1));
+                Log.i(TAG, "packet " + i + ": " + packetSend.length + " bytes");
 
-                outgoingPackets.put(i, packetSend);
-                packetWrite.setValue(packetSend);
-                currConnectedDevice.writeCharacteristic(packetWrite);
-                try {
-                    characteristicWriteBlock.take();
-                } catch (InterruptedException ex) {
-                    Log.e(TAG, "Failed to take from blocking queue");
-                }
+                connection.outgoingPackets.put(i, packetSend);
+                awaitOperation(connection.gattQueue.write(connection.packetWrite, packetSend), TAG);
             }
         }
     }
 
+    /**
+     * @return the reply as json for robots without CAP_BINARY
+     */
+    private byte[] buildJsonReply(ReplyPackage replyPackage) {
+        final String TAG = "Controller.reply()";
+
+        JSONObject jsonReply = new JSONObject();
+        try {
+            jsonReply.put("msgtype", "reply");
+
+            JSONObject msgIdAndResponseId = new JSONObject();
+            msgIdAndResponseId.put("id", replyPackage.getMsgId());
+            msgIdAndResponseId.put("value", replyPackage.getResponseId());
+
+            JSONArray responsesArray = new JSONArray();
+            responsesArray.put(0, msgIdAndResponseId);
+
+            jsonReply.put("responses", responsesArray);
+
+            Log.i(TAG, jsonReply.toString(2));
+        } catch (JSONException ex) {
+            StringWriter stringWriter = new StringWriter();
+            PrintWriter printWriter = new PrintWriter(stringWriter, true);
+            ex.printStackTrace(printWriter);
+            Log.e(TAG, stringWriter.toString());
+        }
+
+        return jsonReply.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
 
     /**
      * responsible for sending packets that the server missed in the initial send
+     * @param connection is the robot that missed packets
      * @param missingPacketNumbers is a byte array indicating which packets were missed
      */
 
-    private void handleMissingPacketRequest(byte[] missingPacketNumbers) {
+    private void handleMissingPacketRequest(RobotConnection connection, byte[] missingPacketNumbers) {
 
         String strMissingPacketNumbers = "";
                 for (byte b : missingPacketNumbers) {
@@ -2359,17 +2983,11 @@ public class ControllerService extends Service {
                             .toBinaryString((b & 0b11111111) + 256).substring(1);
                 }
 
-        for (int i = 0; i < outgoingPackets.size(); i++) {
+        for (int i = 0; i < connection.outgoingPackets.size(); i++) {
             if (strMissingPacketNumbers.charAt(i+1) == '1') {
-                packetWrite.setValue(outgoingPackets.get(i));
-                currConnectedDevice.writeCharacteristic(packetWrite);
-                Log.i("handleMissingPackets", "before block");
-                try {
-                    characteristicWriteBlock.take();
-                } catch (InterruptedException ex) {
-                    Log.e("handleMissingPackets", "Failed to take from blocking queue");
-                }
-                Log.i("handleMissingPackets", "after block");
+                // queued -> we're on a binder thread and must not wait for the write callback
+                connection.gattQueue.write(connection.packetWrite, connection.outgoingPackets.get(i));
+                Log.i("handleMissingPackets", "queued packet " + i);
             }
         }
     }
@@ -2435,16 +3053,97 @@ public class ControllerService extends Service {
     }
 
     /**
-     * set the model
-     * @param newModel is what the model should be now
+     * caller must hold theModelLock. the returned robot is the model's own instance -> not a copy
+     * @param id is the mac address of the robot
+     * @return robot with this id or null if the model doesn't hold it
+     */
+    private static Robot findRobot(String id) {
+        Integer slot = theModelIndex.get(id);
+        return (slot == null ? null : theModel.get(slot));
+    }
+
+    /**
+     * adds a robot to the model, replacing any robot with the same id
+     * @param robot is handed over to the model -> caller should not keep changing it
+     */
+    private static void addRobot(Robot robot) {
+        theModelLock.lock();
+        Integer slot = theModelIndex.get(robot.getId());
+        if (slot == null) {
+            theModelIndex.put(robot.getId(), theModel.size());
+            theModel.add(robot);
+        } else {
+            theModel.set(slot, robot);
+        }
+        theModelLock.unlock();
+    }
+
+    /**
+     * updates proximity of a single robot in place
+     * @param id is the mac address of the robot
+     * @param proximity is the smoothed rssi of the robot
+     */
+    private static void updateProximity(String id, int proximity) {
+        theModelLock.lock();
+        Robot bot = findRobot(id);
+        if (bot != null) {
+            bot.setProximity(proximity);
+        }
+        theModelLock.unlock();
+    }
+
+    /**
+     * @param id is the mac address of the robot
+     * @return last state the robot reported or null if the model doesn't hold it
      */
-    private void setModel(ArrayList<Robot> newModel) {
+    private static String getRobotState(String id) {
         theModelLock.lock();
-        theModel.clear();
-        for (Robot bot : newModel) {
-            theModel.add((Robot)bot.clone());
+        Robot bot = findRobot(id);
+        String state = (bot == null ? null : bot.getCurrState());
+        theModelLock.unlock();
+        return state;
+    }
+
+    /**
+     * @param k is the most robots wanted
+     * @return ids of the k nearest robots in range by smoothed rssi, nearest first
+     */
+    public static List<String> getNearestRobots(int k) {
+        return proximityRanking.getNearest(k);
+    }
+
+    /**
+     * updates proximity and visibility of a single robot in place -> nothing else is touched or cloned
+     * @param id is the mac address of the robot
+     * @param proximity is the latest rssi of the robot
+     * @param visible is the visibility flag from the robot's advertisement
+     * @return false if the model doesn't hold a robot with this id
+     */
+    private static boolean updateSighting(String id, int proximity, boolean visible) {
+        theModelLock.lock();
+        Robot bot = findRobot(id);
+        if (bot == null) {
+            theModelLock.unlock();
+            return false;
         }
+        boolean wasVisible = bot.isVisible();
+        String name = bot.getName();
+        bot.setProximity(proximity);
+        bot.setVisible(visible);
         theModelLock.unlock();
+
+        if (wasVisible && !visible) {
+            Log(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss")
+                    .format(new Date())
+                    + ",SETHIDDEN,"
+                    + name);
+        } else if (!wasVisible && visible) {
+            Log(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss")
+                    .format(new Date())
+                    + ",SETVISIBLE,"
+                    + name);
+        }
+        return true;
     }
 }
 
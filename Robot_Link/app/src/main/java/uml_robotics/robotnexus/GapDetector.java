@@ -0,0 +1,139 @@
+package uml_robotics.robotnexus;
+
+/**
+ * Decides when packets of a wave are lost and builds the missing packet list (nack) for the robot.
+ * A robot streams a wave (or the packets asked for in a nack) in order, so once the last packet of
+ * that round is in, anything still missing is certainly lost and is asked for right away. If the
+ * tail is lost nothing more arrives -> an idle timeout catches that. The timeout follows the
+ * observed gap between packets instead of a fixed 250 ms.
+ */
+public class GapDetector {
+    // ms bounds of the idle timeout
+    public static final long MIN_TIMEOUT = 30;
+    public static final long MAX_TIMEOUT = 250;
+    // ms the robot gets to answer a nack before it is sent again
+    public static final long REPAIR_TIMEOUT = 250;
+    // bytes in a missing packet list -> flag bit + 1 bit per packet of a 128 packet wave
+    public static final int NACK_LENGTH = 20;
+    // first bit of a missing packet list, a success message starts with a 0 bit
+    private static final int NACK_FLAG = 0x80;
+
+    private int lastPacket = -1; // packet that ends the current round
+    private long roundStartedAt = 0; // time the current round was started
+    private long lastArrival = 0; // time of the latest packet of this round, 0 if none yet
+    private double smoothedInterval = -1; // smoothed gap between packets (ms), -1 before a sample
+    private double intervalDeviation = 0; // smoothed deviation of that gap (ms)
+
+    /*
+     * metrics
+     */
+    private long gapNackCount = 0; // nacks sent because a round ended with holes
+    private long timeoutNackCount = 0; // nacks sent because the robot went quiet
+    private long nackedPackets = 0; // packets asked for again
+
+    /**
+     * starts a round of packets from the robot
+     * @param lastPacket is the number (within the wave) of the last packet the robot will send
+     */
+    public synchronized void startRound(int lastPacket) {
+        this.lastPacket = lastPacket;
+        roundStartedAt = System.currentTimeMillis();
+        lastArrival = 0;
+    }
+
+    /**
+     * @param now is the time a packet arrived
+     */
+    public synchronized void arrived(long now) {
+        if (lastArrival != 0) {
+            // same smoothing as tcp uses for round trip times
+            double interval = now - lastArrival;
+            if (smoothedInterval < 0) {
+                smoothedInterval = interval;
+                intervalDeviation = interval / 2;
+            } else {
+                intervalDeviation = 0.75 * intervalDeviation + 0.25 * Math.abs(smoothedInterval - interval);
+                smoothedInterval = 0.875 * smoothedInterval + 0.125 * interval;
+            }
+        }
+        lastArrival = now;
+    }
+
+    /**
+     * @param packetNum is the number (within the wave) of the packet that just arrived
+     * @return true if the robot has sent everything of this round -> holes left are losses
+     */
+    public synchronized boolean isRoundOver(int packetNum) {
+        return packetNum >= lastPacket;
+    }
+
+    /**
+     * @return ms without a packet after which the rest of the round is taken as lost
+     */
+    public synchronized long getTimeout() {
+        if (smoothedInterval < 0) {
+            return MAX_TIMEOUT;
+        }
+        long timeout = (long) (smoothedInterval + 4 * intervalDeviation);
+        return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+    }
+
+    /**
+     * @return time at which the round is given up on if nothing else arrives
+     */
+    public synchronized long getDeadline() {
+        if (lastArrival == 0) {
+            // nothing yet this round -> give the robot time to get going
+            return roundStartedAt + REPAIR_TIMEOUT;
+        }
+        return lastArrival + getTimeout();
+    }
+
+    /**
+     * builds the missing packet list of a wave and starts the repair round it asks for
+     * @param reassembler holds the packets received so far
+     * @param waveStart is the number of the first packet of the wave within the transfer
+     * @param waveSize is the number of packets in the wave
+     * @param timedOut is true if the robot went quiet, false if the round ended with holes
+     * @return flag bit followed by one bit per packet of the wave, 1 -> missing
+     */
+    public synchronized byte[] buildNack(PacketReassembler reassembler, int waveStart, int waveSize,
+                                         boolean timedOut) {
+        byte[] nack = new byte[NACK_LENGTH];
+        nack[0] = (byte) NACK_FLAG;
+
+        int highest = -1;
+        int missing = reassembler.nextMissing(waveStart);
+        while (missing < waveStart + waveSize) {
+            int bit = missing - waveStart + 1; // bit 0 is the flag
+            nack[bit >> 3] |= (byte) (0x80 >>> (bit & 7));
+            highest = missing - waveStart;
+            nackedPackets++;
+            missing = reassembler.nextMissing(missing + 1);
+        }
+
+        if (timedOut) {
+            timeoutNackCount++;
+        } else {
+            gapNackCount++;
+        }
+        startRound(highest);
+        return nack;
+    }
+
+    public synchronized long getNackCount() {
+        return gapNackCount + timeoutNackCount;
+    }
+
+    public synchronized long getNackedPackets() {
+        return nackedPackets;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "nacks on gap: " + gapNackCount + ", nacks on timeout: " + timeoutNackCount
+                + ", packets nacked: " + nackedPackets
+                + ", interval(ms): " + (smoothedInterval < 0 ? "-" : String.format("%.1f", smoothedInterval))
+                + ", timeout(ms): " + getTimeout();
+    }
+}
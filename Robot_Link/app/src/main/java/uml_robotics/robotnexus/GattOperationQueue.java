@@ -0,0 +1,544 @@
+package uml_robotics.robotnexus;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the gatt operations of a single robot one at a time.
+ * Android only allows one outstanding read/write per gatt server, so every operation is queued here
+ * and issued once the one before it has its callback. Callers get a future instead of blocking on a
+ * handshake queue. An operation the gatt server refuses is retried, one whose callback never comes
+ * is failed instead -> a write is never sent twice and a late callback can't complete a retry.
+ * Everything still queued is cancelled when the robot disconnects.
+ */
+public class GattOperationQueue {
+    private static final String TAG = "GattOperationQueue";
+    // ms to wait for the callback of an operation
+    public static final long DEFAULT_TIMEOUT = 2000;
+    // times an operation is issued again after the gatt server refused it
+    public static final int DEFAULT_RETRIES = 2;
+    // ms to wait before issuing an operation the gatt server refused (it is busy)
+    private static final long RETRY_DELAY = 50;
+    // upper bounds (ms) of the latency histogram buckets -> the last bucket holds everything above
+    private static final long[] LATENCY_BUCKETS = {10, 20, 50, 100, 200, 500, 1000};
+
+    public enum Type {
+        READ,
+        WRITE,
+        WRITE_DESCRIPTOR,
+        REQUEST_MTU
+    }
+
+    /**
+     * a queued gatt operation and the future of its result
+     */
+    public class Operation implements Future<byte[]> {
+        private final Type type;
+        private final BluetoothGattCharacteristic characteristic; // target of reads and writes
+        private final BluetoothGattDescriptor descriptor; // target of descriptor writes
+        private final byte[] value; // value written, set on the target right before it is issued
+        private final int mtu; // mtu asked for by an mtu request
+        private final long timeout; // ms to wait for the callback
+        private int retriesLeft;
+        private long issuedAt = 0; // time of the latest attempt
+        private TimerTask timeoutTask = null;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private byte[] result = null; // value read, or written
+        private Exception failure = null; // set if the operation failed or was cancelled
+        private boolean cancelled = false;
+
+        private Operation(Type type, BluetoothGattCharacteristic characteristic,
+                          BluetoothGattDescriptor descriptor, byte[] value, int mtu,
+                          long timeout, int retries) {
+            this.type = type;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = value;
+            this.mtu = mtu;
+            this.timeout = timeout;
+            this.retriesLeft = retries;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return true if this operation is the one a callback of this type and target belongs to
+         */
+        private boolean matches(Type type, Object target) {
+            if (this.type != type) {
+                return false;
+            }
+            if (type == Type.REQUEST_MTU) {
+                return true;
+            }
+            return (type == Type.WRITE_DESCRIPTOR ? descriptor == target : characteristic == target);
+        }
+
+        /**
+         * only ever called with the queue lock held, once per operation
+         */
+        private void finish(byte[] result, Exception failure) {
+            if (timeoutTask != null) {
+                timeoutTask.cancel();
+                timeoutTask = null;
+            }
+            complete(result, failure);
+        }
+
+        /**
+         * hands the result to whoever waits on the future without touching the timeout
+         */
+        private void complete(byte[] result, Exception failure) {
+            this.result = result;
+            this.failure = failure;
+            this.cancelled = (failure instanceof CancellationException);
+            done.countDown();
+        }
+
+        /**
+         * cancelling an operation that has already been issued only stops us from waiting for it.
+         * the next operation is still held back until its callback (or timeout) comes
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            lock.lock();
+            try {
+                if (isDone()) {
+                    return false;
+                }
+                pending.remove(this);
+                cancelledCount++;
+                if (current == this) {
+                    // still out -> its callback or timeout moves the queue on
+                    complete(null, new CancellationException(type + " cancelled"));
+                } else {
+                    finish(null, new CancellationException(type + " cancelled"));
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public byte[] get() throws InterruptedException, ExecutionException {
+            done.await();
+            return getResult();
+        }
+
+        @Override
+        public byte[] get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException(type + " still pending");
+            }
+            return getResult();
+        }
+
+        private byte[] getResult() throws ExecutionException {
+            if (cancelled) {
+                throw (CancellationException) failure;
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return result;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock(); // guards everything below
+    private final ArrayList<Operation> pending = new ArrayList<>(); // operations waiting their turn
+    private Operation current = null; // operation waiting for its callback
+    // operation that timed out -> its callback may still come and must not complete the next one
+    private Operation late = null;
+    private BluetoothGatt gatt; // gatt server operations are issued on
+    // fires operation timeouts of every queue -> one thread however many robots come and go
+    private static final Timer timer = new Timer(true);
+    private boolean closed = false;
+
+    /*
+     * metrics
+     */
+    private final long[] latencyHistogram = new long[LATENCY_BUCKETS.length + 1];
+    private long completedCount = 0; // operations that got a successful callback
+    private long failedCount = 0; // operations that failed after their retries
+    private long retryCount = 0; // attempts beyond the first
+    private long timeoutCount = 0; // attempts that got no callback in time
+    private long cancelledCount = 0; // operations cancelled before they finished
+    private long latencyTotalMillis = 0;
+    private long latencyMaxMillis = 0;
+
+    /**
+     * @param gatt is the gatt server of the robot
+     */
+    public GattOperationQueue(BluetoothGatt gatt) {
+        this.gatt = gatt;
+    }
+
+    /**
+     * @param gatt is the gatt server of the robot -> given once the connection is up
+     */
+    public void setGatt(BluetoothGatt gatt) {
+        lock.lock();
+        try {
+            this.gatt = gatt;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return future holding the value read
+     */
+    public Operation read(BluetoothGattCharacteristic characteristic) {
+        return enqueue(new Operation(Type.READ, characteristic, null, null, 0,
+                DEFAULT_TIMEOUT, DEFAULT_RETRIES));
+    }
+
+    /**
+     * @param value is written to the characteristic when the operation gets its turn
+     * @return future holding the value written
+     */
+    public Operation write(BluetoothGattCharacteristic characteristic, byte[] value) {
+        return enqueue(new Operation(Type.WRITE, characteristic, null, value, 0,
+                DEFAULT_TIMEOUT, DEFAULT_RETRIES));
+    }
+
+    /**
+     * @param value is written to the descriptor when the operation gets its turn
+     * @return future holding the value written
+     */
+    public Operation writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+        return enqueue(new Operation(Type.WRITE_DESCRIPTOR, null, descriptor, value, 0,
+                DEFAULT_TIMEOUT, DEFAULT_RETRIES));
+    }
+
+    /**
+     * @param mtu is the att mtu we would like to use
+     * @return future holding the mtu the robot agreed to as a 4 byte big-endian int
+     */
+    public Operation requestMtu(int mtu) {
+        return enqueue(new Operation(Type.REQUEST_MTU, null, null, null, mtu,
+                DEFAULT_TIMEOUT, 0));
+    }
+
+    private Operation enqueue(Operation operation) {
+        lock.lock();
+        try {
+            if (closed) {
+                cancelledCount++;
+                operation.finish(null, new CancellationException("robot disconnected"));
+                return operation;
+            }
+            pending.add(operation);
+            if (current == null) {
+                issueNext();
+            }
+            return operation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * issues pending operations until one of them is accepted by the gatt server.
+     * called with the lock held
+     */
+    private void issueNext() {
+        while (current == null && !pending.isEmpty() && !closed) {
+            Operation operation = pending.remove(0);
+            current = operation;
+            if (!issue(operation)) {
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * hands an operation (or another attempt of it) to the gatt server. called with the lock held
+     * @return false if the operation was failed instead
+     */
+    private boolean issue(final Operation operation) {
+        boolean accepted = false;
+        if (gatt != null) {
+            switch (operation.type) {
+                case READ:
+                    accepted = gatt.readCharacteristic(operation.characteristic);
+                    break;
+                case WRITE:
+                    operation.characteristic.setValue(operation.value);
+                    accepted = gatt.writeCharacteristic(operation.characteristic);
+                    break;
+                case WRITE_DESCRIPTOR:
+                    operation.descriptor.setValue(operation.value);
+                    accepted = gatt.writeDescriptor(operation.descriptor);
+                    break;
+                case REQUEST_MTU:
+                    accepted = gatt.requestMtu(operation.mtu);
+                    break;
+            }
+        }
+
+        if (accepted) {
+            operation.issuedAt = System.currentTimeMillis();
+            operation.timeoutTask = new TimerTask() {
+                @Override
+                public void run() {
+                    onTimeout(operation);
+                }
+            };
+            timer.schedule(operation.timeoutTask, operation.timeout);
+            return true;
+        }
+
+        // gatt server is busy or gone
+        if (operation.retriesLeft <= 0) {
+            failedCount++;
+            operation.finish(null, new IOException(operation.type + " refused by gatt server"));
+            return false;
+        }
+        operation.retriesLeft--;
+        retryCount++;
+        operation.timeoutTask = new TimerTask() {
+            @Override
+            public void run() {
+                retry(operation);
+            }
+        };
+        timer.schedule(operation.timeoutTask, RETRY_DELAY);
+        return true;
+    }
+
+    /**
+     * issues a refused operation again
+     */
+    private void retry(Operation operation) {
+        lock.lock();
+        try {
+            if (current != operation) {
+                return;
+            }
+            if (operation.isDone() || !issue(operation)) {
+                current = null;
+                issueNext();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onTimeout(Operation operation) {
+        lock.lock();
+        try {
+            if (current != operation) {
+                return;
+            }
+            timeoutCount++;
+            Log.e(TAG, operation.type + " timed out");
+            if (!operation.isDone()) {
+                // not issued again -> the first attempt may still have gone through
+                failedCount++;
+                operation.finish(null, new TimeoutException(operation.type + " got no callback"));
+            }
+            late = operation;
+            current = null;
+            issueNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * completes the operation waiting for this callback and issues the next one
+     * @param value is the value read, null for writes
+     */
+    private void onCallback(Type type, Object target, int status, byte[] value) {
+        lock.lock();
+        try {
+            if (late != null) {
+                boolean isLate = late.matches(type, target);
+                // any callback means the gatt server is done with the operation that timed out
+                late = null;
+                if (isLate) {
+                    Log.i(TAG, "Late " + type + " callback dropped");
+                    return;
+                }
+            }
+
+            Operation operation = current;
+            if (operation == null || !operation.matches(type, target)) {
+                // late callback of an operation we gave up on
+                Log.i(TAG, "Unexpected " + type + " callback");
+                return;
+            }
+
+            if (operation.isDone()) {
+                // operation was cancelled while it was out
+                if (operation.timeoutTask != null) {
+                    operation.timeoutTask.cancel();
+                }
+            } else if (status == BluetoothGatt.GATT_SUCCESS) {
+                long latency = System.currentTimeMillis() - operation.issuedAt;
+                recordLatency(latency);
+                completedCount++;
+                operation.finish((value == null ? operation.value : value), null);
+            } else {
+                failedCount++;
+                operation.finish(null, new IOException(type + " failed with status " + status));
+            }
+            current = null;
+            issueNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+        byte[] value = characteristic.getValue();
+        onCallback(Type.READ, characteristic, status, (value == null ? null : value.clone()));
+    }
+
+    public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        onCallback(Type.WRITE, characteristic, status, null);
+    }
+
+    public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        onCallback(Type.WRITE_DESCRIPTOR, descriptor, status, null);
+    }
+
+    public void onMtuChanged(int mtu, int status) {
+        onCallback(Type.REQUEST_MTU, null, status, ByteBuffer.allocate(4).putInt(mtu).array());
+    }
+
+    /**
+     * cancels every operation still waiting. called when the robot disconnects
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            if (current != null) {
+                cancelledCount++;
+                current.finish(null, new CancellationException("robot disconnected"));
+                current = null;
+            }
+            for (Operation operation : pending) {
+                cancelledCount++;
+                operation.finish(null, new CancellationException("robot disconnected"));
+            }
+            pending.clear();
+            // finish cancelled the timeouts -> don't keep them in the shared timer
+            timer.purge();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordLatency(long millis) {
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS.length && millis > LATENCY_BUCKETS[bucket]) {
+            bucket++;
+        }
+        latencyHistogram[bucket]++;
+        latencyTotalMillis += millis;
+        if (millis > latencyMaxMillis) {
+            latencyMaxMillis = millis;
+        }
+    }
+
+    /**
+     * @return number of operations per latency bucket: <= 10ms, <= 20ms, <= 50ms, <= 100ms,
+     * <= 200ms, <= 500ms, <= 1000ms and above
+     */
+    public long[] getLatencyHistogram() {
+        lock.lock();
+        try {
+            return latencyHistogram.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAverageLatencyMillis() {
+        lock.lock();
+        try {
+            return (completedCount == 0 ? 0 : latencyTotalMillis / completedCount);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCompletedCount() {
+        lock.lock();
+        try {
+            return completedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFailedCount() {
+        lock.lock();
+        try {
+            return failedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getTimeoutCount() {
+        lock.lock();
+        try {
+            return timeoutCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            String result = "completed: " + completedCount + ", failed: " + failedCount
+                    + ", retries: " + retryCount + ", timeouts: " + timeoutCount
+                    + ", cancelled: " + cancelledCount
+                    + ", avg latency(ms): " + (completedCount == 0 ? 0 : latencyTotalMillis / completedCount)
+                    + ", max latency(ms): " + latencyMaxMillis + ", histogram:";
+            for (int i = 0; i < latencyHistogram.length; i++) {
+                result += (i < LATENCY_BUCKETS.length ? " <=" + LATENCY_BUCKETS[i] : " >"
+                        + LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1]) + ": " + latencyHistogram[i];
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package uml_robotics.robotnexus;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single producer / single consumer queue of notification values.
+ * Slots are allocated once, the binder thread copies each value straight into the next free slot
+ * and the reading thread parks until there is something to take -> no locks, no allocation per
+ * packet and no polling. A value that finds the ring full is dropped and counted as an overrun;
+ * the transfer protocols recover it like any other lost packet.
+ */
+public class NotificationRing {
+    private final byte[][] slots; // value i lives in slots[i & mask]
+    private final int[] lengths; // bytes in each slot
+    private final int mask;
+    private final int slotSize; // largest value a slot holds
+
+    private volatile long head = 0; // next value to take -> written by the consumer only
+    private volatile long tail = 0; // next slot to fill -> written by the producer only
+    private volatile boolean waiting = false; // consumer is (about to be) parked
+    private volatile Thread consumer = null;
+    private volatile boolean closed = false;
+
+    /*
+     * metrics -> written by the producer only
+     */
+    private volatile long offeredCount = 0; // values offered
+    private volatile long overrunCount = 0; // values dropped because the ring was full
+    private volatile long oversizeCount = 0; // values dropped because they didn't fit a slot
+    private volatile int peakDepth = 0; // most values waiting at once
+
+    /**
+     * @param capacity is the number of slots, rounded up to a power of two
+     * @param slotSize is the largest value a slot holds
+     */
+    public NotificationRing(int capacity, int slotSize) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new byte[size][slotSize];
+        this.lengths = new int[size];
+        this.mask = size - 1;
+        this.slotSize = slotSize;
+    }
+
+    /**
+     * called by the producer
+     * @return false if the value was dropped
+     */
+    public boolean offer(byte[] value) {
+        if (closed || value == null) {
+            return false;
+        }
+        offeredCount++;
+        if (value.length > slotSize) {
+            oversizeCount++;
+            return false;
+        }
+        long t = tail;
+        int depth = (int) (t - head);
+        if (depth > mask) {
+            overrunCount++;
+            return false;
+        }
+
+        int slot = (int) (t & mask);
+        System.arraycopy(value, 0, slots[slot], 0, value.length);
+        lengths[slot] = value.length;
+        // publishes the slot
+        tail = t + 1;
+        if (depth + 1 > peakDepth) {
+            peakDepth = depth + 1;
+        }
+
+        if (waiting) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * called by the consumer -> parks until a value is in
+     * @param into gets the value, at least getSlotSize() bytes
+     * @return length of the value, -1 once the ring is closed
+     */
+    public int take(byte[] into) {
+        consumer = Thread.currentThread();
+        long h = head;
+        while (h == tail || closed) {
+            if (closed) {
+                return -1;
+            }
+            waiting = true;
+            // a value published before waiting was set is seen here
+            if (h == tail && !closed) {
+                LockSupport.park(this);
+            }
+            waiting = false;
+        }
+
+        int slot = (int) (h & mask);
+        int length = lengths[slot];
+        System.arraycopy(slots[slot], 0, into, 0, length);
+        // frees the slot
+        head = h + 1;
+        return length;
+    }
+
+    /**
+     * called by the consumer -> drops every value that is in
+     */
+    public void clear() {
+        head = tail;
+    }
+
+    /**
+     * wakes the consumer -> take returns -1 from now on
+     */
+    public void close() {
+        closed = true;
+        Thread parked = consumer;
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    public int getPeakDepth() {
+        return peakDepth;
+    }
+
+    @Override
+    public String toString() {
+        return "ring slots: " + slots.length + ", offered: " + offeredCount + ", overruns: " + overrunCount
+                + ", oversize: " + oversizeCount + ", peak depth: " + peakDepth;
+    }
+}
@@ -0,0 +1,399 @@
+package uml_robotics.robotnexus;
+
+import java.util.BitSet;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Puts the packets of one transfer back together.
+ * Each payload is copied straight to its slot in a buffer sized for the whole transfer, arrivals
+ * are tracked in a bitset and the in-order prefix is handed to the crc and the decoder as it
+ * grows. A deflated payload is inflated on the way -> the crc is always over the inflated bytes,
+ * so the status hash is the same whether the robot compressed or not.
+ * With parity packets (every groupSize packets the xor of their payloads, zero padded to the slot
+ * size) a single lost packet of a group is rebuilt here instead of being asked for again. The
+ * last packet of the transfer is the exception -> its length can't be told from the parity. Nor
+ * can the length of the one before it when there is a trailer.
+ * With a trailer the last TRAILER_SIZE bytes of the last packet are the CRC32 of the (inflated)
+ * payload (the robot starts another packet rather than split it) -> they are kept from the
+ * decoder and a payload that doesn't match is not intact.
+ */
+public class PacketReassembler {
+    // bytes of the crc trailer
+    public static final int TRAILER_SIZE = 4;
+
+    private final int totalPackets; // packets in the whole transfer
+    private final int slotSize; // bytes reserved per packet -> largest payload a packet can hold
+    private final byte[] buffer; // packet i lives at i * slotSize
+    private final int[] lengths; // payload length of every packet received
+    private final BitSet received; // set bit -> packet has arrived
+    private int receivedCount = 0;
+    private long duplicateCount = 0; // packets that arrived more than once
+
+    private final CRC32 crc32 = new CRC32(); // runs over packets 0 .. crcThrough - 1
+    private int crcThrough = 0; // first packet not yet in the crc
+    private PayloadDecoder decoder = null; // parses the in-order prefix, null if none
+    private int plainLength = 0; // (inflated) payload bytes handed on so far
+
+    private Inflater inflater = null; // inflates a deflated payload, null if it isn't deflated
+    private byte[] dictionary = null; // preset dictionary of the deflate stream
+    private byte[] chunk = null; // inflater output before it is handed on
+    private boolean corrupt = false; // deflate stream could not be inflated
+    private boolean released = false; // inflater has been ended
+
+    private int groupSize = 0; // packets covered by one parity packet, 0 if there is no parity
+    private byte[] parity = null; // parity of group g lives at g * slotSize
+    private BitSet parityReceived = null; // set bit -> parity of that group has arrived
+    private byte[] rebuilt = null; // packet being rebuilt from its group
+    private long parityCount = 0; // parity packets received
+    private long recoveredCount = 0; // packets rebuilt from parity
+
+    private boolean trailed = false; // last packet ends in a crc trailer
+    private long trailer = -1; // crc the robot sent, -1 until the last packet is handed on
+
+    /**
+     * @param totalPackets is the number of packets in the transfer
+     * @param slotSize is the largest payload (header excluded) a single packet can carry
+     */
+    public PacketReassembler(int totalPackets, int slotSize) {
+        this.totalPackets = totalPackets;
+        this.slotSize = slotSize;
+        this.buffer = new byte[totalPackets * slotSize];
+        this.lengths = new int[totalPackets];
+        this.received = new BitSet(totalPackets);
+    }
+
+    /**
+     * the payload is a deflate stream -> inflate it as it comes in
+     * @param dictionary is the preset dictionary both sides start with, null for none
+     */
+    public void inflateWith(byte[] dictionary) {
+        this.inflater = new Inflater();
+        this.dictionary = dictionary;
+        this.chunk = new byte[Math.max(256, slotSize * 4)];
+    }
+
+    /**
+     * the last packet ends in a crc trailer
+     */
+    public void expectTrailer() {
+        this.trailed = true;
+    }
+
+    /**
+     * the robot sends a parity packet after every groupSize packets
+     */
+    public void protectWith(int groupSize) {
+        this.groupSize = groupSize;
+        int groups = getGroupCount();
+        this.parity = new byte[groups * slotSize];
+        this.parityReceived = new BitSet(groups);
+        this.rebuilt = new byte[slotSize];
+    }
+
+    /**
+     * @param decoder gets the payload bytes in order as they become contiguous
+     */
+    public void setDecoder(PayloadDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    /**
+     * @param index is the number of the packet within the whole transfer
+     * @param packet holds the payload
+     * @param offset is where the payload starts in packet (after the header)
+     * @param length is the number of payload bytes
+     * @return false if the packet was already here or doesn't belong to this transfer
+     */
+    public boolean put(int index, byte[] packet, int offset, int length) {
+        if (index < 0 || index >= totalPackets) {
+            return false;
+        }
+        if (received.get(index)) {
+            duplicateCount++;
+            return false;
+        }
+
+        store(index, packet, offset, length);
+        if (groupSize > 0) {
+            recover(index / groupSize);
+        }
+        return true;
+    }
+
+    /**
+     * @param group is the number of the group the parity covers
+     * @param packet holds the parity
+     * @param offset is where the parity starts in packet (after the header)
+     * @param length is the number of parity bytes
+     * @return false if the parity was already here or doesn't belong to this transfer
+     */
+    public boolean putParity(int group, byte[] packet, int offset, int length) {
+        if (groupSize == 0 || group < 0 || group >= getGroupCount() || parityReceived.get(group)) {
+            return false;
+        }
+        length = Math.max(0, Math.min(length, slotSize));
+        System.arraycopy(packet, offset, parity, group * slotSize, length);
+        parityReceived.set(group);
+        parityCount++;
+        recover(group);
+        return true;
+    }
+
+    /**
+     * rebuilds the packet a group is missing if it is the only one and the parity is in
+     */
+    private void recover(int group) {
+        if (!parityReceived.get(group)) {
+            return;
+        }
+        int first = group * groupSize;
+        int end = Math.min(first + groupSize, totalPackets);
+        int missing = received.nextClearBit(first);
+        if (missing >= end || received.nextClearBit(missing + 1) < end || missing == totalPackets - 1
+                || (trailed && missing == totalPackets - 2)) {
+            // nothing missing, too much missing or a length we don't know -> the robot starts
+            // another packet for the trailer rather than split it, so the one before may be short
+            return;
+        }
+
+        System.arraycopy(parity, group * slotSize, rebuilt, 0, slotSize);
+        for (int i = first; i < end; i++) {
+            if (i != missing) {
+                int start = i * slotSize;
+                for (int j = 0; j < lengths[i]; j++) {
+                    rebuilt[j] ^= buffer[start + j];
+                }
+            }
+        }
+        // every packet but the last is full
+        store(missing, rebuilt, 0, slotSize);
+        recoveredCount++;
+    }
+
+    /**
+     * copies a packet into its slot and hands on whatever is now in order
+     */
+    private void store(int index, byte[] packet, int offset, int length) {
+        length = Math.max(0, Math.min(length, slotSize));
+        System.arraycopy(packet, offset, buffer, index * slotSize, length);
+        lengths[index] = length;
+        received.set(index);
+        receivedCount++;
+
+        // extend the crc over every packet that is now in order
+        while (crcThrough < totalPackets && received.get(crcThrough)) {
+            int start = crcThrough * slotSize;
+            int payload = lengths[crcThrough];
+            if (trailed && crcThrough == totalPackets - 1) {
+                // trailer isn't payload
+                payload = Math.max(0, payload - TRAILER_SIZE);
+                trailer = readTrailer(start + payload, lengths[crcThrough] - payload);
+            }
+            if (inflater == null) {
+                handOn(buffer, start, payload);
+            } else {
+                inflate(start, payload);
+            }
+            crcThrough++;
+        }
+    }
+
+    /**
+     * @return the trailer at offset of the buffer, -1 if the last packet is too short to hold it
+     */
+    private long readTrailer(int offset, int length) {
+        if (length < TRAILER_SIZE) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < TRAILER_SIZE; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * feeds the next in-order piece of a deflated payload to the inflater
+     */
+    private void inflate(int offset, int length) {
+        if (corrupt || released) {
+            return;
+        }
+        inflater.setInput(buffer, offset, length);
+        try {
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(chunk, 0, chunk.length);
+                if (inflated == 0) {
+                    if (inflater.needsDictionary() && dictionary != null) {
+                        inflater.setDictionary(dictionary);
+                        continue;
+                    }
+                    if (inflater.needsInput() || inflater.needsDictionary()) {
+                        break;
+                    }
+                } else {
+                    handOn(chunk, 0, inflated);
+                }
+            }
+        } catch (DataFormatException ex) {
+            corrupt = true;
+        } catch (IllegalArgumentException ex) {
+            // stream was deflated with another preset dictionary
+            corrupt = true;
+        }
+    }
+
+    /**
+     * next in-order bytes of the (inflated) payload
+     */
+    private void handOn(byte[] data, int offset, int length) {
+        crc32.update(data, offset, length);
+        if (decoder != null) {
+            decoder.feed(data, offset, length);
+        }
+        plainLength += length;
+    }
+
+    public boolean has(int index) {
+        return received.get(index);
+    }
+
+    /**
+     * @return true if every packet from (inclusive) to (exclusive) has arrived
+     */
+    public boolean isComplete(int from, int to) {
+        return received.nextClearBit(from) >= to;
+    }
+
+    public boolean isComplete() {
+        return receivedCount == totalPackets;
+    }
+
+    /**
+     * @return number of the first packet at or after from that hasn't arrived
+     */
+    public int nextMissing(int from) {
+        return received.nextClearBit(from);
+    }
+
+    public int getTotalPackets() {
+        return totalPackets;
+    }
+
+    public int getReceivedCount() {
+        return receivedCount;
+    }
+
+    /**
+     * @return one past the highest packet that has arrived, 0 if none has
+     */
+    public int getReceivedEnd() {
+        return received.length();
+    }
+
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * @return number of parity groups, 0 if there is no parity
+     */
+    public int getGroupCount() {
+        return (groupSize == 0 ? 0 : (totalPackets + groupSize - 1) / groupSize);
+    }
+
+    /**
+     * @return true if every packet of the group has arrived (or been rebuilt)
+     */
+    public boolean isGroupComplete(int group) {
+        int first = group * groupSize;
+        return isComplete(first, Math.min(first + groupSize, totalPackets));
+    }
+
+    public long getParityCount() {
+        return parityCount;
+    }
+
+    public long getRecoveredCount() {
+        return recoveredCount;
+    }
+
+    /**
+     * @return CRC32 of the (inflated) payload, only meaningful once the transfer is complete
+     */
+    public long getCrc() {
+        return crc32.getValue();
+    }
+
+    /**
+     * @return number of payload bytes received -> compressed size of a deflated payload
+     */
+    public int getLength() {
+        int length = 0;
+        for (int i = 0; i < totalPackets; i++) {
+            length += lengths[i];
+        }
+        return length;
+    }
+
+    /**
+     * @return number of payload bytes once inflated, the received bytes if it isn't deflated
+     */
+    public int getPlainLength() {
+        return plainLength;
+    }
+
+    public boolean isDeflated() {
+        return inflater != null;
+    }
+
+    /**
+     * call once every packet is in -> releases the inflater
+     * @return true if the whole payload made it to the crc and decoder
+     */
+    public boolean isIntact() {
+        if (!isComplete()) {
+            return false;
+        }
+        if (inflater != null && !released) {
+            // a stream that isn't finished once every packet is in is broken too
+            corrupt = corrupt || !inflater.finished();
+            release();
+        }
+        return !corrupt && !hasTrailerMismatch();
+    }
+
+    /**
+     * only meaningful once every packet is in
+     * @return true if the payload doesn't match the crc trailer the robot sent
+     */
+    public boolean hasTrailerMismatch() {
+        return trailed && trailer != crc32.getValue();
+    }
+
+    /**
+     * @return crc the robot sent in the trailer, -1 if there is none (yet)
+     */
+    public long getTrailer() {
+        return trailer;
+    }
+
+    /**
+     * @return true if more packets can still make it to the crc and decoder -> worth resuming
+     */
+    public boolean isResumable() {
+        return !corrupt && !released;
+    }
+
+    /**
+     * ends the inflater of a transfer that is given up on
+     */
+    public void release() {
+        if (inflater != null && !released) {
+            inflater.end();
+            released = true;
+        }
+    }
+}
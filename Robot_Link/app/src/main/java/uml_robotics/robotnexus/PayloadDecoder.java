@@ -0,0 +1,23 @@
+package uml_robotics.robotnexus;
+
+/**
+ * Turns the bytes of a robot payload into a RobotUpdate as they become contiguous.
+ */
+public interface PayloadDecoder {
+    /**
+     * @param data holds the next bytes of the payload
+     * @param offset is where they start in data
+     * @param length is how many there are
+     */
+    void feed(byte[] data, int offset, int length);
+
+    /**
+     * @return the update once the whole payload has been fed or null if it is incomplete or broken
+     */
+    RobotUpdate getUpdate();
+
+    /**
+     * @return why the payload was rejected or null if it wasn't
+     */
+    String getError();
+}
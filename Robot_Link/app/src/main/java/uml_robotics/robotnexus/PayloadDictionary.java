@@ -0,0 +1,30 @@
+package uml_robotics.robotnexus;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Preset deflate dictionary for robot payloads (capability CAP_DEFLATE).
+ * Status and progression json repeat the same keys and values in every update, so both sides
+ * start deflate with them already in its window. Robots must use the exact same bytes ->
+ * never change this, add a new capability with a new dictionary instead.
+ * Deflate finds late strings with shorter distances, so the most common ones are at the end.
+ */
+public class PayloadDictionary {
+    private static final String DICTIONARY =
+            "roomba500 dirtdog bender neato roomba eva junior "
+            + "\"state\":\"dangerous\"\"state\":\"safe\"\"state\":\"off\"\"state\":\"help\""
+            + "{\"msgtype\":\"ack\"}{\"msgtype\":\"reply\","
+            + "\"responses\":[{\"id\":\"0\",\"value\":\"Yes\"},{\"id\":\"1\",\"value\":\"No\"}]}"
+            + "{\"msgtype\":\"update\",\"name\":\"\",\"model\":\"\",\"state\":\"ok\","
+            + "\"progression\":[{\"msgid\":\"\",\"content\":\"\",\"responses\":[{\"id\":\"\",\"value\":\"\"},"
+            + "{\"msgid\":\"\",\"content\":\"\",\"responses\":[{\"id\":\"\",\"value\":\"\"}]}]}";
+
+    private static final byte[] BYTES = DICTIONARY.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * @return a copy of the dictionary
+     */
+    public static byte[] get() {
+        return BYTES.clone();
+    }
+}
@@ -0,0 +1,169 @@
+package uml_robotics.robotnexus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Smooths the rssi of every robot and keeps the robots ordered nearest first.
+ * Each robot has its own filter: an exponential moving average fed from a small ring buffer of raw
+ * samples, which throws away single outliers. A new sample only moves its robot as far as its
+ * smoothed rssi changed, so the nearest k robots can be read off in O(k) without sorting.
+ * Robots that haven't been heard for STALE_MILLIS are out of range -> they are dropped.
+ */
+public class ProximityRanking {
+    private static final int RING_SIZE = 8; // raw samples kept per robot
+    private static final double ALPHA = 0.25; // weight of a new sample in the moving average
+    private static final int OUTLIER_DB = 15; // samples this far (dB) from the average are suspect
+    // suspect samples in a row before we believe the robot really moved
+    private static final int MAX_OUTLIERS = 3;
+    // ms without an advertisement before a robot is dropped -> longer than the slowest scan cycle
+    public static final long STALE_MILLIS = 60 * 1000;
+
+    /**
+     * rssi filter of a single robot
+     */
+    private static class RssiFilter {
+        private final String id; // mac address of the robot
+        private final int[] samples = new int[RING_SIZE]; // ring of raw samples
+        private int next = 0; // slot the next sample goes in
+        private int count = 0; // number of slots holding a sample
+        private double average; // smoothed rssi
+        private int outliersInARow = 0; // suspect samples since the last accepted one
+        private int rank; // index of this robot in ranking
+        private long heardAt; // time of the latest sample
+
+        RssiFilter(String id, int rssi, long now) {
+            this.id = id;
+            this.average = rssi;
+            this.heardAt = now;
+            addSample(rssi);
+        }
+
+        private void addSample(int rssi) {
+            samples[next] = rssi;
+            next = (next + 1) % RING_SIZE;
+            if (count < RING_SIZE) {
+                count++;
+            }
+        }
+
+        /**
+         * @param rssi is the raw rssi of the latest advertisement
+         */
+        void update(int rssi, long now) {
+            heardAt = now;
+            addSample(rssi);
+
+            if (Math.abs(rssi - average) > OUTLIER_DB) {
+                outliersInARow++;
+                if (outliersInARow < MAX_OUTLIERS) {
+                    // most likely a reflection or a blocked antenna -> ignore it
+                    return;
+                }
+
+                // robot has really moved -> restart the average from the samples since
+                double sum = 0;
+                for (int i = 1; i <= outliersInARow; i++) {
+                    sum += samples[(next - i + RING_SIZE) % RING_SIZE];
+                }
+                average = sum / outliersInARow;
+                outliersInARow = 0;
+                return;
+            }
+
+            outliersInARow = 0;
+            average += ALPHA * (rssi - average);
+        }
+
+        int getRssi() {
+            return (int) Math.round(average);
+        }
+    }
+
+    private final HashMap<String, RssiFilter> filters = new HashMap<>(); // robot id -> filter
+    private final ArrayList<RssiFilter> ranking = new ArrayList<>(); // nearest (strongest) first
+
+    /**
+     * @param id is the mac address of the robot
+     * @param rssi is the raw rssi of its latest advertisement
+     * @return the smoothed rssi of this robot
+     */
+    public synchronized int update(String id, int rssi) {
+        long now = System.currentTimeMillis();
+        RssiFilter filter = filters.get(id);
+        if (filter == null) {
+            // a robot came into range -> good time to forget the ones that left
+            removeStale(now);
+            filter = new RssiFilter(id, rssi, now);
+            filters.put(id, filter);
+            filter.rank = ranking.size();
+            ranking.add(filter);
+        } else {
+            filter.update(rssi, now);
+        }
+
+        // move this robot until its neighbours are in order again
+        int smoothed = filter.getRssi();
+        while (filter.rank > 0 && ranking.get(filter.rank - 1).getRssi() < smoothed) {
+            swap(filter.rank, filter.rank - 1);
+        }
+        while (filter.rank < ranking.size() - 1 && ranking.get(filter.rank + 1).getRssi() > smoothed) {
+            swap(filter.rank, filter.rank + 1);
+        }
+        return smoothed;
+    }
+
+    private void swap(int i, int j) {
+        RssiFilter a = ranking.get(i);
+        RssiFilter b = ranking.get(j);
+        ranking.set(i, b);
+        ranking.set(j, a);
+        a.rank = j;
+        b.rank = i;
+    }
+
+    /**
+     * @param k is the most robots wanted
+     * @return ids of the k nearest robots still in range, nearest first
+     */
+    public synchronized List<String> getNearest(int k) {
+        long now = System.currentTimeMillis();
+        List<String> nearest = new ArrayList<>(Math.min(k, ranking.size()));
+        int i = 0;
+        while (nearest.size() < k && i < ranking.size()) {
+            RssiFilter filter = ranking.get(i);
+            if (now - filter.heardAt > STALE_MILLIS) {
+                // next one moves up into i
+                remove(filter);
+            } else {
+                nearest.add(filter.id);
+                i++;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * drops every robot that is out of range
+     */
+    private void removeStale(long now) {
+        for (int i = ranking.size() - 1; i >= 0; i--) {
+            if (now - ranking.get(i).heardAt > STALE_MILLIS) {
+                remove(ranking.get(i));
+            }
+        }
+    }
+
+    private void remove(RssiFilter filter) {
+        filters.remove(filter.id);
+        ranking.remove(filter.rank);
+        for (int i = filter.rank; i < ranking.size(); i++) {
+            ranking.get(i).rank = i;
+        }
+    }
+
+    public synchronized int size() {
+        return ranking.size();
+    }
+}
@@ -4,7 +4,10 @@ import android.graphics.Bitmap;
 import android.util.Log;
 
 import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.util.HashMap;
 import java.util.zip.Checksum;
 
 /**
@@ -54,6 +57,51 @@ public class Robot {
         return progression;
     }
 
+    /**
+     * merges a delta into a copy of the progression -> an element with a msgid we already hold
+     * replaces the old one (e.g. it was answered), the rest are appended in order
+     * @param delta holds the new and changed progression elements
+     * @return the merged progression, this robot's progression is left alone
+     */
+    public JSONArray mergeProgression(JSONArray delta) throws JSONException {
+        JSONArray merged = new JSONArray();
+        HashMap<String, Integer> slots = new HashMap<String, Integer>(); // msgid -> index in merged
+        for (int i = 0; i < progression.length(); i++) {
+            Object element = progression.opt(i);
+            String msgId = getMessageId(element);
+            if (msgId != null) {
+                slots.put(msgId, merged.length());
+            }
+            merged.put(element);
+        }
+
+        for (int i = 0; i < delta.length(); i++) {
+            Object element = delta.opt(i);
+            String msgId = getMessageId(element);
+            Integer slot = (msgId == null ? null : slots.get(msgId));
+            if (slot != null) {
+                merged.put(slot, element);
+            } else {
+                if (msgId != null) {
+                    slots.put(msgId, merged.length());
+                }
+                merged.put(element);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @return msgid of the newest progression element or null if there is none
+     */
+    public String getLastMessageId() {
+        return (progression.length() == 0 ? null : getMessageId(progression.opt(progression.length() - 1)));
+    }
+
+    private static String getMessageId(Object element) {
+        return (element instanceof JSONObject ? ((JSONObject) element).optString("msgid", null) : null);
+    }
+
     public void setProximity(int proximity) {
         this.proximity = proximity;
     }
@@ -296,6 +296,9 @@ public class RobotLink extends AppCompatActivity {
         modelUpdate = new ModelUpdate();
         modelUpdate.start();
 
+        // user is looking at a robot -> scan with low latency
+        ControllerService.setUiVisible(true);
+
         /*
         ControllerService.Log(DateFormat.getTimeInstance().format(new Date())
                 + ": Looking at " + robot.getName());*/
@@ -320,6 +323,7 @@ public class RobotLink extends AppCompatActivity {
     protected void onStop() {
         super.onStop();
         modelUpdate.close();
+        ControllerService.setUiVisible(false);
         waitDialog.dismiss();
         ControllerService.Log(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss")
                 .format(new Date())
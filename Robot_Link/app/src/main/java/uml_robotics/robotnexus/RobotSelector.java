@@ -15,6 +15,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 
 public class RobotSelector extends AppCompatActivity {
     private ArrayList<Robot> model; // view's copy of the model
@@ -30,7 +31,7 @@ public class RobotSelector extends AppCompatActivity {
         setSupportActionBar(toolbar);
 
 
-        model = ControllerService.getModel(); // getting view's copy of the model
+        model = nearestFirst(ControllerService.getModel()); // getting view's copy of the model
 
         robotSelectorHandler = new Handler(); // getting this view's thread
 
@@ -117,6 +118,8 @@ public class RobotSelector extends AppCompatActivity {
         super.onStart();
         modelUpdate = new ModelUpdate();
         modelUpdate.start();
+        // user is looking at nearby robots -> scan with low latency
+        ControllerService.setUiVisible(true);
         ControllerService.Log(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss")
                 .format(new Date())
                 + ",OPEN,nearby_robots");
@@ -137,6 +140,7 @@ public class RobotSelector extends AppCompatActivity {
         super.onStop();
         // end our update
         modelUpdate.close();
+        ControllerService.setUiVisible(false);
         ControllerService.Log(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss")
                 .format(new Date())
                 + ",CLOSE,nearby_robots");
@@ -147,6 +151,28 @@ public class RobotSelector extends AppCompatActivity {
         super.onDestroy();
     }
 
+    /**
+     * @param robots is a copy of the model
+     * @return the robots nearest first -> robots that are out of range keep their order at the end
+     */
+    private static ArrayList<Robot> nearestFirst(ArrayList<Robot> robots) {
+        ArrayList<Robot> ordered = new ArrayList<>(robots.size());
+        // id -> robot, in model order for the ones left over
+        LinkedHashMap<String, Robot> rest = new LinkedHashMap<>();
+        for (Robot bot : robots) {
+            rest.put(bot.getId(), bot);
+        }
+        // the ranking also holds robots that aren't in the model -> ask for all of them
+        for (String id : ControllerService.getNearestRobots(Integer.MAX_VALUE)) {
+            Robot bot = rest.remove(id);
+            if (bot != null) {
+                ordered.add(bot);
+            }
+        }
+        ordered.addAll(rest.values());
+        return ordered;
+    }
+
     private class ModelUpdate extends Thread {
 
         private boolean keepAlive = true;
@@ -168,7 +194,7 @@ public class RobotSelector extends AppCompatActivity {
                 // if our models don't match up
                 if (!(modelPrime.containsAll(model) && model.containsAll(modelPrime))) {
 
-                    model = ControllerService.getModel();
+                    model = nearestFirst(ControllerService.getModel());
                     Log.i("RobotSelector.Update", "Model changed");
 
                     // checking how many robots needs to be displayed (not ignored)
@@ -0,0 +1,124 @@
+package uml_robotics.robotnexus;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * Typed contents of a robot payload, filled in by a PayloadDecoder as the payload streams in.
+ * Getters of required fields throw like JSONObject's do when the robot left them out.
+ */
+public class RobotUpdate {
+    private String msgType = null; // "update", "delta" or "ack"
+    private String name = null;
+    private String state = null;
+    private String model = null;
+    private JSONArray progression = null; // null if the robot sent none
+    private long base = -1; // status hash a delta applies to, -1 if absent
+    private long hash = -1; // status hash of the robot (once a delta is applied), -1 if absent
+
+    void setMsgType(String msgType) {
+        this.msgType = msgType;
+    }
+
+    void setName(String name) {
+        this.name = name;
+    }
+
+    void setState(String state) {
+        this.state = state;
+    }
+
+    void setModel(String model) {
+        this.model = model;
+    }
+
+    void setProgression(JSONArray progression) {
+        this.progression = progression;
+    }
+
+    void setBase(long base) {
+        this.base = base;
+    }
+
+    void setHash(long hash) {
+        this.hash = hash;
+    }
+
+    public String getMsgType() throws JSONException {
+        return require("msgtype", msgType);
+    }
+
+    /**
+     * @return true if the robot had nothing new to say
+     */
+    public boolean isAck() {
+        return "ack".equals(msgType);
+    }
+
+    /**
+     * @return true if the progression only holds new and changed elements
+     */
+    public boolean isDelta() {
+        return "delta".equals(msgType);
+    }
+
+    /**
+     * @return status hash the delta applies to
+     */
+    public long getBase() throws JSONException {
+        return require("base", base);
+    }
+
+    /**
+     * @return status hash of the whole status (once the delta is applied)
+     */
+    public long getHash() throws JSONException {
+        return require("hash", hash);
+    }
+
+    /**
+     * @return true if the robot sent its status hash -> the crc of the payload isn't it
+     */
+    public boolean hasHash() {
+        return hash >= 0;
+    }
+
+    public String getName() throws JSONException {
+        return require("name", name);
+    }
+
+    public String getState() throws JSONException {
+        return require("state", state);
+    }
+
+    public String getModel() throws JSONException {
+        return require("model", model);
+    }
+
+    /**
+     * @return the progression or null if the robot sent none
+     */
+    public JSONArray getProgression() {
+        return progression;
+    }
+
+    private static String require(String key, String value) throws JSONException {
+        if (value == null) {
+            throw new JSONException("No value for " + key);
+        }
+        return value;
+    }
+
+    private static long require(String key, long value) throws JSONException {
+        if (value < 0) {
+            throw new JSONException("No value for " + key);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "msgtype: " + msgType + ", name: " + name + ", state: " + state + ", model: " + model
+                + ", progression: " + (progression == null ? "none" : progression.length() + " elements");
+    }
+}
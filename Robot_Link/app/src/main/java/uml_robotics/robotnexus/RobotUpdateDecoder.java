@@ -0,0 +1,443 @@
+package uml_robotics.robotnexus;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Push parser for robot payloads.
+ * Takes the utf-8 bytes of the payload in order, in whatever pieces they become contiguous, and
+ * builds the json values as it goes -> parsing overlaps with the transfer and there is never a
+ * String of the whole payload. Members of the top level object land in a RobotUpdate as soon as
+ * each one is complete.
+ */
+public class RobotUpdateDecoder implements PayloadDecoder {
+    /*
+     * parser states
+     */
+    private static final int VALUE = 0; // expecting a value
+    private static final int FIRST_KEY = 1; // after '{' -> key or '}'
+    private static final int KEY = 2; // after ',' in an object -> key
+    private static final int COLON = 3; // after a key
+    private static final int FIRST_VALUE = 4; // after '[' -> value or ']'
+    private static final int AFTER_VALUE = 5; // expecting ',' or the end of the container
+    private static final int STRING = 6; // inside a string
+    private static final int ESCAPE = 7; // after '\' in a string
+    private static final int UNICODE = 8; // inside a \\uXXXX escape
+    private static final int NUMBER = 9;
+    private static final int LITERAL = 10; // true, false or null
+    private static final int DONE = 11; // top level value is complete
+    private static final int ERROR = 12;
+
+    private int state = VALUE;
+    private final ArrayList<Object> containers = new ArrayList<>(); // open objects and arrays
+    private final ArrayList<String> keys = new ArrayList<>(); // key being filled, per open container
+    private Object root = null; // top level value once complete
+    private String error = null; // why the payload was rejected
+
+    private boolean stringIsKey = false; // string being read is a key
+    private byte[] stringBytes = new byte[64]; // utf-8 bytes of the string being read
+    private int stringLength = 0;
+    private int unicodeValue = 0; // \\u escape read so far
+    private int unicodeDigits = 0;
+    private char highSurrogate = 0; // first half of an escaped surrogate pair, 0 if none
+    private final StringBuilder token = new StringBuilder(); // number or literal being read
+
+    private final RobotUpdate update = new RobotUpdate();
+    private long bytesFed = 0;
+
+    @Override
+    public void feed(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end && state != ERROR) {
+            if (consume(data[i])) {
+                i++;
+                // counted once consumed -> an error names the byte it is at
+                bytesFed++;
+            }
+        }
+    }
+
+    /**
+     * @return false if the byte ended a token and has to be looked at again
+     */
+    private boolean consume(byte b) {
+        switch (state) {
+            case STRING:
+                if (b == '"') {
+                    endString();
+                } else if (b == '\\') {
+                    state = ESCAPE;
+                } else {
+                    endSurrogate();
+                    appendStringByte(b);
+                }
+                return true;
+
+            case ESCAPE:
+                escape(b);
+                return true;
+
+            case UNICODE:
+                int digit = Character.digit((char) (b & 0xFF), 16);
+                if (digit < 0) {
+                    fail("bad \\u escape");
+                    return true;
+                }
+                unicodeValue = (unicodeValue << 4) | digit;
+                if (++unicodeDigits == 4) {
+                    appendEscapedChar((char) unicodeValue);
+                    state = STRING;
+                }
+                return true;
+
+            case NUMBER:
+                if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+                    token.append((char) b);
+                    return true;
+                }
+                endNumber();
+                return false;
+
+            case LITERAL:
+                if (b >= 'a' && b <= 'z') {
+                    token.append((char) b);
+                    return true;
+                }
+                endLiteral();
+                return false;
+
+            default:
+                break;
+        }
+
+        if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+            return true;
+        }
+
+        switch (state) {
+            case VALUE:
+            case FIRST_VALUE:
+                if (state == FIRST_VALUE && b == ']') {
+                    closeContainer(false);
+                } else {
+                    startValue(b);
+                }
+                break;
+
+            case FIRST_KEY:
+            case KEY:
+                if (state == FIRST_KEY && b == '}') {
+                    closeContainer(true);
+                } else if (b == '"') {
+                    stringIsKey = true;
+                    stringLength = 0;
+                    state = STRING;
+                } else {
+                    fail("expected a key");
+                }
+                break;
+
+            case COLON:
+                if (b == ':') {
+                    state = VALUE;
+                } else {
+                    fail("expected ':'");
+                }
+                break;
+
+            case AFTER_VALUE:
+                boolean inObject = containers.get(containers.size() - 1) instanceof JSONObject;
+                if (b == ',') {
+                    state = (inObject ? KEY : VALUE);
+                } else if (b == '}' && inObject) {
+                    closeContainer(true);
+                } else if (b == ']' && !inObject) {
+                    closeContainer(false);
+                } else {
+                    fail("expected ',' or end of container");
+                }
+                break;
+
+            case DONE:
+                fail("data after the payload");
+                break;
+
+            default:
+                break;
+        }
+        return true;
+    }
+
+    private void startValue(byte b) {
+        if (b == '{') {
+            containers.add(new JSONObject());
+            keys.add(null);
+            state = FIRST_KEY;
+        } else if (b == '[') {
+            containers.add(new JSONArray());
+            keys.add(null);
+            state = FIRST_VALUE;
+        } else if (b == '"') {
+            stringIsKey = false;
+            stringLength = 0;
+            state = STRING;
+        } else if ((b >= '0' && b <= '9') || b == '-') {
+            token.setLength(0);
+            token.append((char) b);
+            state = NUMBER;
+        } else if (b >= 'a' && b <= 'z') {
+            token.setLength(0);
+            token.append((char) b);
+            state = LITERAL;
+        } else {
+            fail("unexpected '" + (char) (b & 0xFF) + "'");
+        }
+    }
+
+    private void closeContainer(boolean object) {
+        Object container = containers.remove(containers.size() - 1);
+        keys.remove(keys.size() - 1);
+        if ((container instanceof JSONObject) != object) {
+            fail("mismatched end of container");
+            return;
+        }
+        endValue(container);
+    }
+
+    /**
+     * puts a complete value into the container it belongs to
+     */
+    private void endValue(Object value) {
+        if (containers.isEmpty()) {
+            root = value;
+            state = DONE;
+            return;
+        }
+
+        Object container = containers.get(containers.size() - 1);
+        try {
+            if (container instanceof JSONArray) {
+                ((JSONArray) container).put(value);
+            } else {
+                String key = keys.get(keys.size() - 1);
+                ((JSONObject) container).put(key, value);
+                if (containers.size() == 1) {
+                    member(key, value);
+                }
+            }
+        } catch (JSONException ex) {
+            fail(ex.getMessage());
+            return;
+        }
+        state = AFTER_VALUE;
+    }
+
+    /**
+     * a member of the top level object is complete
+     */
+    private void member(String key, Object value) {
+        if ("msgtype".equals(key)) {
+            update.setMsgType(asString(value));
+        } else if ("name".equals(key)) {
+            update.setName(asString(value));
+        } else if ("state".equals(key)) {
+            update.setState(asString(value));
+        } else if ("model".equals(key)) {
+            update.setModel(asString(value));
+        } else if ("progression".equals(key)) {
+            update.setProgression(value instanceof JSONArray ? (JSONArray) value : null);
+        } else if ("base".equals(key)) {
+            update.setBase(asLong(value));
+        } else if ("hash".equals(key)) {
+            update.setHash(asLong(value));
+        }
+    }
+
+    private static long asLong(Object value) {
+        return (value instanceof Number ? ((Number) value).longValue() : -1);
+    }
+
+    private static String asString(Object value) {
+        return (value == null || value == JSONObject.NULL ? null : value.toString());
+    }
+
+    /**
+     * an escaped high surrogate that no low one followed is replaced
+     */
+    private void endSurrogate() {
+        if (highSurrogate != 0) {
+            appendCodePoint(0xFFFD);
+            highSurrogate = 0;
+        }
+    }
+
+    private void endString() {
+        endSurrogate();
+        String value = new String(stringBytes, 0, stringLength, StandardCharsets.UTF_8);
+        if (stringIsKey) {
+            keys.set(keys.size() - 1, value);
+            state = COLON;
+        } else {
+            endValue(value);
+        }
+    }
+
+    private void escape(byte b) {
+        state = STRING;
+        switch (b) {
+            case '"':
+            case '\\':
+            case '/':
+                appendEscapedChar((char) b);
+                break;
+            case 'b':
+                appendEscapedChar('\b');
+                break;
+            case 'f':
+                appendEscapedChar('\f');
+                break;
+            case 'n':
+                appendEscapedChar('\n');
+                break;
+            case 'r':
+                appendEscapedChar('\r');
+                break;
+            case 't':
+                appendEscapedChar('\t');
+                break;
+            case 'u':
+                unicodeValue = 0;
+                unicodeDigits = 0;
+                state = UNICODE;
+                break;
+            default:
+                fail("bad escape");
+        }
+    }
+
+    /**
+     * escaped chars are stored as utf-8 like the rest of the string
+     */
+    private void appendEscapedChar(char c) {
+        if (highSurrogate != 0) {
+            if (Character.isLowSurrogate(c)) {
+                appendCodePoint(Character.toCodePoint(highSurrogate, c));
+                highSurrogate = 0;
+                return;
+            }
+            endSurrogate();
+        }
+        if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            appendCodePoint(0xFFFD);
+        } else {
+            appendCodePoint(c);
+        }
+    }
+
+    private void appendCodePoint(int codePoint) {
+        if (codePoint < 0x80) {
+            appendStringByte(codePoint);
+        } else if (codePoint < 0x800) {
+            appendStringByte(0xC0 | (codePoint >> 6));
+            appendStringByte(0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            appendStringByte(0xE0 | (codePoint >> 12));
+            appendStringByte(0x80 | ((codePoint >> 6) & 0x3F));
+            appendStringByte(0x80 | (codePoint & 0x3F));
+        } else {
+            appendStringByte(0xF0 | (codePoint >> 18));
+            appendStringByte(0x80 | ((codePoint >> 12) & 0x3F));
+            appendStringByte(0x80 | ((codePoint >> 6) & 0x3F));
+            appendStringByte(0x80 | (codePoint & 0x3F));
+        }
+    }
+
+    private void appendStringByte(int b) {
+        if (stringLength == stringBytes.length) {
+            byte[] bigger = new byte[stringBytes.length * 2];
+            System.arraycopy(stringBytes, 0, bigger, 0, stringLength);
+            stringBytes = bigger;
+        }
+        stringBytes[stringLength++] = (byte) b;
+    }
+
+    private void endNumber() {
+        String text = token.toString();
+        try {
+            if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+                long value = Long.parseLong(text);
+                // same types JSONObject would have picked
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                    endValue((int) value);
+                } else {
+                    endValue(value);
+                }
+            } else {
+                endValue(Double.parseDouble(text));
+            }
+        } catch (NumberFormatException ex) {
+            fail("bad number " + text);
+        }
+    }
+
+    private void endLiteral() {
+        String text = token.toString();
+        if (text.equals("true")) {
+            endValue(Boolean.TRUE);
+        } else if (text.equals("false")) {
+            endValue(Boolean.FALSE);
+        } else if (text.equals("null")) {
+            endValue(JSONObject.NULL);
+        } else {
+            fail("bad literal " + text);
+        }
+    }
+
+    private void fail(String reason) {
+        if (state != ERROR) {
+            error = reason + " at byte " + bytesFed;
+            state = ERROR;
+        }
+    }
+
+    /**
+     * a bare number only ends when the payload does
+     */
+    private void endPayload() {
+        if (state == NUMBER) {
+            endNumber();
+        }
+    }
+
+    @Override
+    public RobotUpdate getUpdate() {
+        endPayload();
+        if (state != DONE) {
+            return null;
+        }
+        return (root instanceof JSONObject ? update : null);
+    }
+
+    @Override
+    public String getError() {
+        endPayload();
+        if (state == ERROR) {
+            return error;
+        }
+        if (state != DONE) {
+            return "payload ended early";
+        }
+        return (root instanceof JSONObject ? null : "payload is not an object");
+    }
+
+    public long getBytesFed() {
+        return bytesFed;
+    }
+}
@@ -0,0 +1,66 @@
+package uml_robotics.robotnexus;
+
+/**
+ * Sizes and processing times of batched scan deliveries.
+ */
+public class ScanBatchStats {
+    private long batchCount = 0; // batches delivered
+    private long resultCount = 0; // scan results across all batches
+    private long uniqueCount = 0; // results left after de-duplicating each batch per address
+    private int peakBatchSize = 0; // largest batch delivered
+    private long processingTotalNanos = 0; // time spent handling batches
+    private long processingMaxNanos = 0; // slowest batch
+
+    /**
+     * @param batchSize is the number of results in the batch
+     * @param uniqueDevices is the number of distinct addresses in the batch
+     * @param processingNanos is the time it took to handle the batch
+     */
+    public synchronized void record(int batchSize, int uniqueDevices, long processingNanos) {
+        batchCount++;
+        resultCount += batchSize;
+        uniqueCount += uniqueDevices;
+        if (batchSize > peakBatchSize) {
+            peakBatchSize = batchSize;
+        }
+        processingTotalNanos += processingNanos;
+        if (processingNanos > processingMaxNanos) {
+            processingMaxNanos = processingNanos;
+        }
+    }
+
+    public synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    public synchronized long getAverageBatchSize() {
+        return (batchCount == 0 ? 0 : resultCount / batchCount);
+    }
+
+    public synchronized int getPeakBatchSize() {
+        return peakBatchSize;
+    }
+
+    /**
+     * @return results dropped because a newer result of the same device was in the batch
+     */
+    public synchronized long getDuplicateCount() {
+        return resultCount - uniqueCount;
+    }
+
+    public synchronized long getAverageProcessingNanos() {
+        return (batchCount == 0 ? 0 : processingTotalNanos / batchCount);
+    }
+
+    public synchronized long getMaxProcessingNanos() {
+        return processingMaxNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "batches: " + batchCount + ", avg size: " + getAverageBatchSize()
+                + ", peak size: " + peakBatchSize + ", duplicates: " + getDuplicateCount()
+                + ", avg processing(us): " + (getAverageProcessingNanos() / 1000)
+                + ", max processing(us): " + (processingMaxNanos / 1000);
+    }
+}
@@ -0,0 +1,205 @@
+package uml_robotics.robotnexus;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Latest-wins mailbox for scan callbacks.
+ * Holds at most one package per device address -> a newer advertisement replaces the one still
+ * waiting instead of queueing behind it. Devices are handed out in the order they first arrived.
+ */
+public class ScanMailbox<T> {
+    private final LinkedHashMap<String, T> packages = new LinkedHashMap<>(); // address -> newest package
+    private final ReentrantLock lock = new ReentrantLock(); // guards everything below
+    private final Condition notEmpty = lock.newCondition(); // signalled when a package is posted
+
+    /*
+     * metrics
+     */
+    private long postedCount = 0; // packages handed to post()
+    private long coalescedCount = 0; // packages replaced before they were taken
+    private int peakDepth = 0; // largest number of devices waiting at once
+    private long latencyCount = 0; // number of latencies recorded
+    private long latencyTotalNanos = 0; // sum of recorded latencies
+    private long latencyMaxNanos = 0; // worst recorded latency
+
+    /**
+     * called from the scan callback -> never blocks for long
+     * @param address is the mac address of the advertising device
+     * @param callbackPackage is the newest advertisement of this device
+     */
+    public void post(String address, T callbackPackage) {
+        lock.lock();
+        try {
+            postedCount++;
+            if (packages.put(address, callbackPackage) != null) {
+                // an older advertisement of this device was still waiting
+                coalescedCount++;
+            }
+            if (packages.size() > peakDepth) {
+                peakDepth = packages.size();
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * posts a whole batch under one lock and wakes the consumer once
+     * @param batch maps each address to the newest package of that device in the batch
+     */
+    public void postAll(Map<String, T> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            for (Map.Entry<String, T> entry : batch.entrySet()) {
+                postedCount++;
+                if (packages.put(entry.getKey(), entry.getValue()) != null) {
+                    coalescedCount++;
+                }
+            }
+            if (packages.size() > peakDepth) {
+                peakDepth = packages.size();
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * blocks until a package is available
+     * @return the newest package of the device that has waited longest
+     * @throws InterruptedException if the consumer is closed while waiting
+     */
+    public T take() throws InterruptedException {
+        return poll(Long.MAX_VALUE);
+    }
+
+    /**
+     * blocks until a package is available or the timeout runs out
+     * @param timeout is the most ms to wait. Long.MAX_VALUE waits forever
+     * @return the newest package of the device that has waited longest or null on timeout
+     * @throws InterruptedException if the consumer is closed while waiting
+     */
+    public T poll(long timeout) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (packages.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            Iterator<Map.Entry<String, T>> iterator = packages.entrySet().iterator();
+            T callbackPackage = iterator.next().getValue();
+            iterator.remove();
+            return callbackPackage;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * drops every waiting package
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            packages.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * used by the consumer once it has made a decision on a package
+     * @param nanos is the time from scan callback to decision
+     */
+    public void recordLatency(long nanos) {
+        lock.lock();
+        try {
+            latencyCount++;
+            latencyTotalNanos += nanos;
+            if (nanos > latencyMaxNanos) {
+                latencyMaxNanos = nanos;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of devices currently waiting
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return packages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getPeakDepth() {
+        lock.lock();
+        try {
+            return peakDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getPostedCount() {
+        lock.lock();
+        try {
+            return postedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCoalescedCount() {
+        lock.lock();
+        try {
+            return coalescedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAverageLatencyNanos() {
+        lock.lock();
+        try {
+            return (latencyCount == 0 ? 0 : latencyTotalNanos / latencyCount);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxLatencyNanos() {
+        lock.lock();
+        try {
+            return latencyMaxNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "depth: " + size() + ", peak depth: " + getPeakDepth()
+                + ", posted: " + getPostedCount() + ", coalesced: " + getCoalescedCount()
+                + ", avg latency(us): " + (getAverageLatencyNanos() / 1000)
+                + ", max latency(us): " + (getMaxLatencyNanos() / 1000);
+    }
+}
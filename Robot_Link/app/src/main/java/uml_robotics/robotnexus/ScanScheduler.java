@@ -0,0 +1,166 @@
+package uml_robotics.robotnexus;
+
+import android.bluetooth.le.ScanSettings;
+
+import java.util.HashSet;
+
+/**
+ * Picks how aggressively the controller scans.
+ * A UI in the foreground or a robot asking for help (or being dangerous) gets low latency,
+ * a recent status change gets balanced scanning and everything else duty-cycles at low power.
+ * Also keeps track of how long the radio has been scanning under each profile.
+ */
+public class ScanScheduler {
+
+    public enum Profile {
+        LOW_LATENCY(ScanSettings.SCAN_MODE_LOW_LATENCY),
+        BALANCED(ScanSettings.SCAN_MODE_BALANCED),
+        LOW_POWER(ScanSettings.SCAN_MODE_LOW_POWER);
+
+        private final int scanMode; // ScanSettings scan mode used by this profile
+
+        Profile(int scanMode) {
+            this.scanMode = scanMode;
+        }
+
+        public int getScanMode() {
+            return scanMode;
+        }
+    }
+
+    // how long (ms) after a status change we keep scanning balanced
+    private long recentChangeWindow = 2 * 60 * 1000;
+    // ms of scanning per window for each profile
+    private final long[] onWindow = {0, 10 * 1000, 5 * 1000};
+    // ms of not scanning per window for each profile -> 0 scans continuously
+    private final long[] offWindow = {0, 5 * 1000, 25 * 1000};
+
+    /*
+     * signals
+     */
+    private int uiVisibleCount = 0; // number of UIs currently in the foreground
+    private HashSet<String> urgentRobots = new HashSet<>(); // ids of robots in help or dangerous
+    private long lastStatusChange = 0; // time of the last status checksum change
+
+    /*
+     * radio time
+     */
+    private Profile radioProfile = null; // profile the radio is scanning with, null if off
+    private long radioOnSince = 0; // time the radio started scanning
+    private final long[] radioOnTime = new long[Profile.values().length]; // ms scanned per profile
+    private final long[] scanStarts = new long[Profile.values().length]; // scans started per profile
+
+    /**
+     * @return the profile the current signals call for
+     */
+    public synchronized Profile selectProfile() {
+        if (uiVisibleCount > 0 || !urgentRobots.isEmpty()) {
+            return Profile.LOW_LATENCY;
+        }
+        if (lastStatusChange != 0
+                && System.currentTimeMillis() - lastStatusChange < recentChangeWindow) {
+            return Profile.BALANCED;
+        }
+        return Profile.LOW_POWER;
+    }
+
+    /**
+     * @param visible is true when a UI comes to the foreground and false when it leaves
+     */
+    public synchronized void setUiVisible(boolean visible) {
+        uiVisibleCount = Math.max(0, uiVisibleCount + (visible ? 1 : -1));
+    }
+
+    public synchronized boolean isUiVisible() {
+        return uiVisibleCount > 0;
+    }
+
+    /**
+     * @param id is the mac address of the robot
+     * @param state is the state the robot just reported
+     */
+    public synchronized void setRobotState(String id, String state) {
+        if ("help".equals(state) || "dangerous".equals(state)) {
+            urgentRobots.add(id);
+        } else {
+            urgentRobots.remove(id);
+        }
+    }
+
+    /**
+     * called whenever a robot's status checksum changes
+     */
+    public synchronized void statusChanged() {
+        lastStatusChange = System.currentTimeMillis();
+    }
+
+    /**
+     * @param profile whose windows are changed
+     * @param onMillis is how long to scan per window
+     * @param offMillis is how long to rest per window -> 0 scans continuously
+     */
+    public synchronized void setWindows(Profile profile, long onMillis, long offMillis) {
+        onWindow[profile.ordinal()] = onMillis;
+        offWindow[profile.ordinal()] = offMillis;
+    }
+
+    /**
+     * @param recentChangeWindow is how long (ms) after a status change to keep scanning balanced
+     */
+    public synchronized void setRecentChangeWindow(long recentChangeWindow) {
+        this.recentChangeWindow = recentChangeWindow;
+    }
+
+    public synchronized long getRecentChangeWindow() {
+        return recentChangeWindow;
+    }
+
+    public synchronized long getOnWindow(Profile profile) {
+        return onWindow[profile.ordinal()];
+    }
+
+    public synchronized long getOffWindow(Profile profile) {
+        return offWindow[profile.ordinal()];
+    }
+
+    /**
+     * @param profile the radio started scanning with
+     */
+    public synchronized void radioOn(Profile profile) {
+        radioOff();
+        radioProfile = profile;
+        radioOnSince = System.currentTimeMillis();
+        scanStarts[profile.ordinal()]++;
+    }
+
+    /**
+     * radio stopped scanning
+     */
+    public synchronized void radioOff() {
+        if (radioProfile != null) {
+            radioOnTime[radioProfile.ordinal()] += System.currentTimeMillis() - radioOnSince;
+            radioProfile = null;
+        }
+    }
+
+    /**
+     * @return ms the radio has scanned under this profile, including the current scan
+     */
+    public synchronized long getRadioOnTime(Profile profile) {
+        long onTime = radioOnTime[profile.ordinal()];
+        if (radioProfile == profile) {
+            onTime += System.currentTimeMillis() - radioOnSince;
+        }
+        return onTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        String result = "";
+        for (Profile profile : Profile.values()) {
+            result += profile + " on(ms): " + getRadioOnTime(profile)
+                    + " starts: " + scanStarts[profile.ordinal()] + "; ";
+        }
+        return result;
+    }
+}
@@ -0,0 +1,251 @@
+package uml_robotics.robotnexus;
+
+/**
+ * Receiving side of the sliding window transfer (capability CAP_SLIDING_WINDOW).
+ * Packets carry a 2 byte header: repair flag + 15 bit sequence number, so a payload is no longer
+ * cut into 128 packet waves. The robot keeps streaming while it has fewer than WINDOW_SIZE packets
+ * past our cumulative ack and resends whatever the latest ack marks as missing in between.
+ *
+ * ack layout (written to Missing Packet Write):
+ * byte 0 -> ACK_TYPE, bytes 1-2 -> cumulative ack (packets received in order, big endian),
+ * bytes 3.. -> one bit per packet after the first missing one (msb first), 1 -> missing
+ *
+ * resume request (capability CAP_RESUME, written to Missing Packet Write before the packet count
+ * is read): byte 0 -> RESUME_TYPE, bytes 1-4 -> advertised status checksum, bytes 5-6 -> total
+ * packets, bytes 7-8 -> cumulative ack, bytes 9-10 -> end, bytes 11.. -> bitmap like an ack.
+ * A robot whose payload still has that checksum and size answers the count with RESUMED set,
+ * resends the missing packets before end as repairs and streams on from end.
+ *
+ * parity packets (capability CAP_FEC): the sequence number shrinks to 14 bits and PARITY_FLAG in
+ * the first header byte marks a parity packet, whose number is its group. After every PARITY_GROUP
+ * packets the robot sends the xor of their payloads -> a single loss in a group is rebuilt by the
+ * reassembler, so skipped packets are only acked once the parity of their group is in and
+ * couldn't fill the hole.
+ */
+public class SlidingWindow {
+    // bytes in front of the payload of every packet
+    public static final int HEADER_SIZE = 2;
+    // first byte of an ack -> legacy messages start with 0x80 (missing list) or 0x00 (success)
+    public static final int ACK_TYPE = 0x40;
+    // bytes in an ack
+    public static final int ACK_LENGTH = 20;
+    // first byte of a resume request
+    public static final int RESUME_TYPE = 0x20;
+    // set in the packet count by a robot that took up our resume request
+    public static final int RESUMED = 0x80000000;
+    // packets the robot may send past our cumulative ack
+    public static final int WINDOW_SIZE = 128;
+    // most packets a transfer can have
+    public static final int MAX_PACKETS = 0x8000;
+    // most packets a transfer with parity can have
+    public static final int MAX_PARITY_PACKETS = 0x4000;
+    // packets covered by one parity packet
+    public static final int PARITY_GROUP = 8;
+    // packets received between acks -> robot never stalls on a full window
+    private static final int ACK_EVERY = WINDOW_SIZE / 2;
+    private static final int REPAIR_FLAG = 0x80; // in the first header byte
+    private static final int PARITY_FLAG = 0x40; // in the first header byte, with CAP_FEC only
+    private static final int BITMAP_PACKETS = (ACK_LENGTH - 3) * 8; // packets an ack can mark
+    private static final int RESUME_HEADER = 11; // bytes in front of the bitmap of a resume request
+
+    private int highestSeen = -1; // highest sequence number of a fresh (not repair) packet
+    private int sinceAck = 0; // packets received since the last ack
+    private int groupSize = 0; // packets per parity group, 0 without parity
+    private int highestParity = -1; // highest group whose parity has arrived
+
+    /*
+     * metrics
+     */
+    private long gapAckCount = 0; // acks sent because a packet was skipped
+    private long periodicAckCount = 0; // acks sent to move the window
+    private long timeoutAckCount = 0; // acks sent because the robot went quiet
+    private long repairCount = 0; // repair packets received
+    private long parityCount = 0; // parity packets received
+    private long unrecoveredCount = 0; // groups the parity couldn't fill
+
+    /**
+     * @return sequence number of a packet
+     */
+    public static int getSequence(byte[] packet) {
+        return ((packet[0] & ~REPAIR_FLAG & 0xFF) << 8) | (packet[1] & 0xFF);
+    }
+
+    /**
+     * @return true if the robot resent this packet because an ack marked it missing
+     */
+    public static boolean isRepair(byte[] packet) {
+        return (packet[0] & REPAIR_FLAG) != 0;
+    }
+
+    /**
+     * only meaningful with CAP_FEC
+     * @return true if this is a parity packet
+     */
+    public static boolean isParity(byte[] packet) {
+        return (packet[0] & PARITY_FLAG) != 0;
+    }
+
+    /**
+     * @return group a parity packet covers
+     */
+    public static int getGroup(byte[] packet) {
+        return ((packet[0] & ~(REPAIR_FLAG | PARITY_FLAG) & 0xFF) << 8) | (packet[1] & 0xFF);
+    }
+
+    /**
+     * the robot sends a parity packet after every groupSize packets
+     */
+    public synchronized void protect(int groupSize) {
+        this.groupSize = groupSize;
+    }
+
+    /**
+     * @param sequence is the sequence number of the packet that just arrived
+     * @param repair is true if it was resent
+     * @return true if an ack should go out now
+     */
+    public synchronized boolean arrived(int sequence, boolean repair) {
+        sinceAck++;
+        if (repair) {
+            repairCount++;
+        } else {
+            // notifications keep their order -> a skipped number is lost for sure
+            boolean gap = sequence > highestSeen + 1;
+            if (sequence > highestSeen) {
+                highestSeen = sequence;
+            }
+            if (gap && groupSize == 0) {
+                gapAckCount++;
+                return true;
+            }
+        }
+        return isAckDue();
+    }
+
+    /**
+     * @param group is the group whose parity just arrived
+     * @param complete is true if the group has every packet now
+     * @return true if an ack should go out now
+     */
+    public synchronized boolean parityArrived(int group, boolean complete) {
+        sinceAck++;
+        parityCount++;
+        if (group > highestParity) {
+            highestParity = group;
+        }
+        if (!complete) {
+            // more than the parity can fill -> ask now
+            unrecoveredCount++;
+            gapAckCount++;
+            return true;
+        }
+        return isAckDue();
+    }
+
+    private boolean isAckDue() {
+        if (sinceAck >= ACK_EVERY) {
+            periodicAckCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param reassembler holds what an earlier connection received
+     * @param length is the most bytes the request may take
+     * @return first packet the robot streams fresh on a resume -> holes past what the bitmap can
+     * mark are simply streamed again
+     */
+    public static int getResumeEnd(PacketReassembler reassembler, int length) {
+        int cumulative = reassembler.nextMissing(0);
+        return Math.min(reassembler.getReceivedEnd(), cumulative + 1 + (length - RESUME_HEADER) * 8);
+    }
+
+    /**
+     * @param reassembler holds what an earlier connection received
+     * @param hash is the status checksum the robot advertised for it
+     * @param length is the most bytes the request may take
+     * @return the resume request for the packets still missing
+     */
+    public static byte[] buildResume(PacketReassembler reassembler, long hash, int length) {
+        int cumulative = reassembler.nextMissing(0);
+        int end = getResumeEnd(reassembler, length);
+        int total = reassembler.getTotalPackets();
+        byte[] request = new byte[RESUME_HEADER + (Math.max(0, end - cumulative - 1) + 7) / 8];
+        request[0] = (byte) RESUME_TYPE;
+        request[1] = (byte) (hash >> 24);
+        request[2] = (byte) (hash >> 16);
+        request[3] = (byte) (hash >> 8);
+        request[4] = (byte) hash;
+        request[5] = (byte) (total >> 8);
+        request[6] = (byte) total;
+        request[7] = (byte) (cumulative >> 8);
+        request[8] = (byte) cumulative;
+        request[9] = (byte) (end >> 8);
+        request[10] = (byte) end;
+
+        int missing = reassembler.nextMissing(cumulative + 1);
+        while (missing < end) {
+            int bit = missing - cumulative - 1;
+            request[RESUME_HEADER + (bit >> 3)] |= (byte) (0x80 >>> (bit & 7));
+            missing = reassembler.nextMissing(missing + 1);
+        }
+        return request;
+    }
+
+    /**
+     * the robot resumes a transfer -> everything before end counts as sent already
+     * @param end is the first packet it streams fresh
+     */
+    public synchronized void resumeAt(int end) {
+        highestSeen = end - 1;
+    }
+
+    /**
+     * @param reassembler holds the packets received so far
+     * @param timedOut is true if the ack goes out because the robot went quiet
+     * @return the ack for what has been received so far
+     */
+    public synchronized byte[] buildAck(PacketReassembler reassembler, boolean timedOut) {
+        if (timedOut) {
+            timeoutAckCount++;
+        }
+        sinceAck = 0;
+
+        int cumulative = reassembler.nextMissing(0);
+        byte[] ack = new byte[ACK_LENGTH];
+        ack[0] = (byte) ACK_TYPE;
+        ack[1] = (byte) (cumulative >> 8);
+        ack[2] = (byte) cumulative;
+
+        // only packets the robot has already sent can be missing
+        int end = Math.min(highestSeen + 1, Math.min(cumulative + 1 + BITMAP_PACKETS,
+                reassembler.getTotalPackets()));
+        if (groupSize > 0 && !timedOut) {
+            // holes in groups whose parity is still on its way may be rebuilt yet
+            end = Math.min(end, (highestParity + 1) * groupSize);
+        }
+        int missing = reassembler.nextMissing(cumulative + 1);
+        while (missing < end) {
+            int bit = missing - cumulative - 1;
+            ack[3 + (bit >> 3)] |= (byte) (0x80 >>> (bit & 7));
+            missing = reassembler.nextMissing(missing + 1);
+        }
+        return ack;
+    }
+
+    public synchronized long getAckCount() {
+        return gapAckCount + periodicAckCount + timeoutAckCount;
+    }
+
+    public synchronized long getRepairCount() {
+        return repairCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "acks on gap: " + gapAckCount + ", periodic acks: " + periodicAckCount
+                + ", acks on timeout: " + timeoutAckCount + ", repairs: " + repairCount
+                + (groupSize > 0 ? ", parity: " + parityCount + ", groups unrecovered: " + unrecoveredCount : "");
+    }
+}
@@ -0,0 +1,176 @@
+package uml_robotics.robotnexus;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Transfers a disconnect cut short, kept per robot for a while so the next connection can resume
+ * them instead of starting over from packet 0.
+ * A kept transfer is only handed back if the robot still advertises the status checksum it had
+ * and the link is set up the same way -> same packets, same payload.
+ */
+public class TransferCache {
+    // ms a transfer is kept after its connection dropped
+    public static final long RETAIN_MILLIS = 60 * 1000;
+    // most transfers kept at once -> oldest goes first
+    private static final int MAX_TRANSFERS = 4;
+
+    /**
+     * what an unfinished transfer got so far and what it depends on
+     */
+    public static class Transfer {
+        private final long hash; // status checksum the robot advertised
+        private final long syncBase; // status hash sent in the sync request, -1 if none
+        private final int capabilities; // capability bits agreed with the robot
+        private final int packetSize; // bytes per packet
+        private final PacketReassembler reassembler;
+        private final PayloadDecoder decoder;
+        private long retainedAt = 0;
+
+        public Transfer(long hash, long syncBase, int capabilities, int packetSize,
+                        PacketReassembler reassembler, PayloadDecoder decoder) {
+            this.hash = hash;
+            this.syncBase = syncBase;
+            this.capabilities = capabilities;
+            this.packetSize = packetSize;
+            this.reassembler = reassembler;
+            this.decoder = decoder;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+
+        public PacketReassembler getReassembler() {
+            return reassembler;
+        }
+
+        public PayloadDecoder getDecoder() {
+            return decoder;
+        }
+
+        /**
+         * call when the transfer won't be resumed
+         */
+        public void release() {
+            reassembler.release();
+        }
+    }
+
+    private final LinkedHashMap<String, Transfer> transfers = new LinkedHashMap<>(); // address -> transfer
+    private final ReentrantLock lock = new ReentrantLock(); // guards everything below
+
+    /*
+     * metrics
+     */
+    private long retainedCount = 0; // transfers kept
+    private long resumedCount = 0; // transfers robots resumed
+    private long packetsSaved = 0; // packets resumed transfers didn't have to stream again
+    private long expiredCount = 0; // transfers dropped before a connection came back
+    private long mismatchCount = 0; // transfers dropped because the robot or the link changed
+
+    /**
+     * keeps a transfer until the robot is connected again, replacing any earlier one
+     * @param address is the mac address of the robot
+     */
+    public void retain(String address, Transfer transfer) {
+        lock.lock();
+        try {
+            evictExpired();
+            transfer.retainedAt = now();
+            Transfer earlier = transfers.remove(address);
+            if (earlier != null) {
+                earlier.release();
+            }
+            transfers.put(address, transfer);
+            retainedCount++;
+            if (transfers.size() > MAX_TRANSFERS) {
+                Iterator<Transfer> oldest = transfers.values().iterator();
+                oldest.next().release();
+                oldest.remove();
+                expiredCount++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param address is the mac address of the robot
+     * @param hash is the status checksum it advertises now
+     * @param syncBase is the status hash sent in this connection's sync request, -1 if none
+     * @param capabilities are the capability bits agreed this time
+     * @param packetSize is the packet size of this connection
+     * @return the kept transfer of the robot, removed from the cache, if it still applies.
+     * null otherwise
+     */
+    public Transfer take(String address, long hash, long syncBase, int capabilities, int packetSize) {
+        lock.lock();
+        try {
+            evictExpired();
+            Transfer transfer = transfers.remove(address);
+            if (transfer == null) {
+                return null;
+            }
+            if (transfer.hash != hash || transfer.syncBase != syncBase
+                    || transfer.capabilities != capabilities || transfer.packetSize != packetSize) {
+                // robot has a new status or the payload would be cut differently
+                transfer.release();
+                mismatchCount++;
+                return null;
+            }
+            return transfer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param packets is the number of packets the resumed transfer already had
+     */
+    public void recordResume(int packets) {
+        lock.lock();
+        try {
+            resumedCount++;
+            packetsSaved += packets;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * call with lock held
+     */
+    private void evictExpired() {
+        long now = now();
+        Iterator<Transfer> iterator = transfers.values().iterator();
+        while (iterator.hasNext()) {
+            Transfer transfer = iterator.next();
+            if (now - transfer.retainedAt > RETAIN_MILLIS) {
+                transfer.release();
+                iterator.remove();
+                expiredCount++;
+            }
+        }
+    }
+
+    /**
+     * @return current time in ms -> tests move it on instead of waiting
+     */
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "kept transfers: " + transfers.size() + ", retained: " + retainedCount
+                    + ", resumed: " + resumedCount + ", packets saved: " + packetsSaved
+                    + ", expired: " + expiredCount + ", mismatched: " + mismatchCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
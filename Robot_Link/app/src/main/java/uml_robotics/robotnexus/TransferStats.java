@@ -0,0 +1,107 @@
+package uml_robotics.robotnexus;
+
+/**
+ * Sync times and what the transfer tricks (deflate, not modified, parity, re-fetch) saved or cost.
+ */
+public class TransferStats {
+    private long syncCount = 0; // connections that completed a sync
+    private long syncTotalMillis = 0; // sum of connect to sync complete times
+    private long syncMaxMillis = 0; // slowest sync
+    private long transferBytes = 0; // payload bytes streamed by robots
+    private long transferMillis = 0; // time spent streaming them
+    private long transferCount = 0; // transfers recorded
+    private long deflatedBytes = 0; // deflated payload bytes streamed
+    private long inflatedBytes = 0; // what those bytes inflated to
+    private long airtimeSavedMillis = 0; // streaming time deflate saved
+    private long notModifiedCount = 0; // syncs that ended with the robot saying nothing changed
+    private long notModifiedMillis = 0; // sum of connect to not modified times
+    private long notModifiedSavedMillis = 0; // connection time they saved against a full sync
+    private long notModifiedAirtimeMillis = 0; // streaming time they saved
+    private long parityPackets = 0; // parity packets streamed by robots
+    private long recoveredPackets = 0; // lost packets rebuilt from parity
+    private long retransmittedPackets = 0; // lost packets robots had to send again
+    private long refetchCount = 0; // payloads streamed again after failing their crc trailer
+
+    /**
+     * @param millis is the time from connecting to the sync being complete
+     */
+    public synchronized void recordSync(long millis) {
+        syncCount++;
+        syncTotalMillis += millis;
+        if (millis > syncMaxMillis) {
+            syncMaxMillis = millis;
+        }
+    }
+
+    /**
+     * @param bytes is the payload a robot streamed to us
+     * @param millis is how long the stream took
+     */
+    public synchronized void recordTransfer(long bytes, long millis) {
+        transferBytes += bytes;
+        transferMillis += millis;
+        transferCount++;
+    }
+
+    /**
+     * a conditional sync where the robot had nothing new -> not counted as a sync, saved time is
+     * measured against the average full sync so far
+     * @param millis is the time from connecting to the robot saying nothing changed
+     */
+    public synchronized void recordNotModified(long millis) {
+        notModifiedCount++;
+        notModifiedMillis += millis;
+        if (syncCount > 0) {
+            notModifiedSavedMillis += Math.max(0, syncTotalMillis / syncCount - millis);
+        }
+        if (transferCount > 0) {
+            notModifiedAirtimeMillis += transferMillis / transferCount;
+        }
+    }
+
+    /**
+     * called for every sliding window transfer -> with and without parity, so both can be compared
+     * @param parity is the number of parity packets the robot sent
+     * @param recovered is the number of lost packets rebuilt from them
+     * @param retransmitted is the number of packets the robot had to send again
+     */
+    public synchronized void recordRepairs(long parity, long recovered, long retransmitted) {
+        parityPackets += parity;
+        recoveredPackets += recovered;
+        retransmittedPackets += retransmitted;
+    }
+
+    /**
+     * a payload failed its crc trailer and is streamed again in the same connection
+     */
+    public synchronized void recordRefetch() {
+        refetchCount++;
+    }
+
+    /**
+     * @param wireBytes is the size of a deflated payload
+     * @param plainBytes is its size once inflated
+     * @param savedMillis is the streaming time it saved
+     */
+    public synchronized void recordCompression(long wireBytes, long plainBytes, long savedMillis) {
+        deflatedBytes += wireBytes;
+        inflatedBytes += plainBytes;
+        airtimeSavedMillis += savedMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "syncs: " + syncCount
+                + ", avg sync(ms): " + (syncCount == 0 ? 0 : syncTotalMillis / syncCount)
+                + ", max sync(ms): " + syncMaxMillis
+                + ", throughput(B/s): " + (transferMillis == 0 ? 0 : transferBytes * 1000 / transferMillis)
+                + ", compression: " + (deflatedBytes == 0 ? "-" : String.format("%.2f", (double) inflatedBytes / deflatedBytes))
+                + ", airtime saved(ms): " + airtimeSavedMillis
+                + ", not modified: " + notModifiedCount
+                + ", avg not modified(ms): " + (notModifiedCount == 0 ? 0 : notModifiedMillis / notModifiedCount)
+                + ", connection time saved(ms): " + notModifiedSavedMillis
+                + ", streaming saved(ms): " + notModifiedAirtimeMillis
+                + ", parity packets: " + parityPackets + ", recovered: " + recoveredPackets
+                + ", retransmitted: " + retransmittedPackets + ", re-fetches: " + refetchCount;
+    }
+}
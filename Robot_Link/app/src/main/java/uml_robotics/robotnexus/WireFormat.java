@@ -0,0 +1,414 @@
+package uml_robotics.robotnexus;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of robot payloads and replies (capability CAP_BINARY).
+ * Carries the same content as the json messages but lays it out by a fixed schema instead of
+ * naming every key:
+ *
+ * message -> u8 version, u8 type, then by type:
+ *   update -> u32 status hash, status
+ *   delta  -> u32 base, u32 status hash, status
+ *   ack    -> nothing
+ *   reply  -> str msgid, str response id
+ * status  -> str name, enum state, enum model, varint elements + 1 (0 -> no progression), elements
+ * element -> str msgid, str content, u8 flags, [varint n, n * (str id, str value)], [str selection]
+ *
+ * varint is unsigned leb128, str is a varint byte length followed by utf-8, enum is a u8 index
+ * into a known list or 0xFF followed by a str, u32 is big endian.
+ * Robots send their status hash because the crc of a binary payload is not the advertised one.
+ */
+public class WireFormat {
+    public static final int VERSION = 1;
+    public static final int TYPE_UPDATE = 0;
+    public static final int TYPE_ACK = 1;
+    public static final int TYPE_DELTA = 2;
+    public static final int TYPE_REPLY = 3;
+
+    // element flags
+    private static final int HAS_RESPONSES = 0x01;
+    private static final int HAS_SELECTION = 0x02;
+    // enum value that isn't in the list -> a str follows
+    private static final int OTHER = 0xFF;
+    // longest str we accept -> anything longer is a broken payload
+    private static final int MAX_STRING = 0xFFFF;
+    // never reorder these, only append -> robots send the index
+    private static final String[] STATES = {"ok", "safe", "help", "dangerous", "off"};
+    private static final String[] MODELS = {"neato", "roomba", "bender", "dirtdog", "roomba500", "eva"};
+
+    /**
+     * @return a reply message -> a few bytes, fits in one packet
+     */
+    public static byte[] encodeReply(String msgId, String responseId) {
+        Writer writer = new Writer();
+        writer.u8(VERSION);
+        writer.u8(TYPE_REPLY);
+        writer.str(msgId);
+        writer.str(responseId);
+        return writer.toByteArray();
+    }
+
+    /**
+     * @return msgid and response id of a reply message
+     * @throws JSONException if it isn't a reply message of this version
+     */
+    public static String[] decodeReply(byte[] message) throws JSONException {
+        Reader reader = new Reader(message, message.length);
+        try {
+            if (reader.u8() != VERSION || reader.u8() != TYPE_REPLY) {
+                throw new JSONException("not a reply");
+            }
+            return new String[]{reader.str(), reader.str()};
+        } catch (Underflow ex) {
+            throw new JSONException("reply ended early");
+        }
+    }
+
+    /**
+     * @return the binary payload a robot would send for this update
+     * @throws JSONException if fields the schema needs are missing
+     */
+    public static byte[] encodeUpdate(RobotUpdate update) throws JSONException {
+        Writer writer = new Writer();
+        writer.u8(VERSION);
+        if (update.isAck()) {
+            writer.u8(TYPE_ACK);
+            return writer.toByteArray();
+        }
+        if (update.isDelta()) {
+            writer.u8(TYPE_DELTA);
+            writer.u32(update.getBase());
+        } else {
+            writer.u8(TYPE_UPDATE);
+        }
+        writer.u32(update.getHash());
+        writer.str(update.getName());
+        writer.enumValue(STATES, update.getState());
+        writer.enumValue(MODELS, update.getModel());
+
+        JSONArray progression = update.getProgression();
+        if (progression == null) {
+            writer.varint(0);
+            return writer.toByteArray();
+        }
+        writer.varint(progression.length() + 1);
+        for (int i = 0; i < progression.length(); i++) {
+            JSONObject element = progression.getJSONObject(i);
+            writer.str(element.getString("msgid"));
+            writer.str(element.optString("content", ""));
+            JSONArray responses = element.optJSONArray("responses");
+            String selection = (element.isNull("selection") ? null : element.getString("selection"));
+            writer.u8((responses != null ? HAS_RESPONSES : 0) | (selection != null ? HAS_SELECTION : 0));
+            if (responses != null) {
+                writer.varint(responses.length());
+                for (int j = 0; j < responses.length(); j++) {
+                    writer.str(responses.getJSONObject(j).getString("id"));
+                    writer.str(responses.getJSONObject(j).getString("value"));
+                }
+            }
+            if (selection != null) {
+                writer.str(selection);
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * streaming decoder of binary payloads -> each progression element is decoded once all of
+     * its bytes are in, so only the unfinished element is ever held back
+     */
+    public static class Decoder implements PayloadDecoder {
+        private static final int HEADER = 0;
+        private static final int STATUS = 1;
+        private static final int ELEMENTS = 2;
+        private static final int DONE = 3;
+        private static final int ERROR = 4;
+
+        private int stage = HEADER;
+        private byte[] pending = new byte[256]; // bytes not decoded yet
+        private int pendingLength = 0;
+        private int elementsLeft = 0;
+        private JSONArray progression = null;
+        private final RobotUpdate update = new RobotUpdate();
+        private String error = null;
+        private long bytesFed = 0;
+
+        @Override
+        public void feed(byte[] data, int offset, int length) {
+            if (stage == ERROR || length == 0) {
+                return;
+            }
+            if (stage == DONE) {
+                fail("data after the payload");
+                return;
+            }
+            if (pendingLength + length > pending.length) {
+                byte[] bigger = new byte[Math.max(pending.length * 2, pendingLength + length)];
+                System.arraycopy(pending, 0, bigger, 0, pendingLength);
+                pending = bigger;
+            }
+            System.arraycopy(data, offset, pending, pendingLength, length);
+            pendingLength += length;
+            bytesFed += length;
+            decode();
+        }
+
+        /**
+         * decodes as many whole items as pending holds
+         */
+        private void decode() {
+            while (stage != DONE && stage != ERROR) {
+                Reader reader = new Reader(pending, pendingLength);
+                try {
+                    switch (stage) {
+                        case HEADER:
+                            header(reader);
+                            break;
+                        case STATUS:
+                            status(reader);
+                            break;
+                        default:
+                            element(reader);
+                            break;
+                    }
+                } catch (Underflow ex) {
+                    // rest of the item hasn't arrived yet
+                    return;
+                } catch (JSONException ex) {
+                    fail(ex.getMessage());
+                    return;
+                }
+
+                // drop what has been decoded
+                pendingLength -= reader.position;
+                System.arraycopy(pending, reader.position, pending, 0, pendingLength);
+            }
+            if (stage == DONE && pendingLength > 0) {
+                fail("data after the payload");
+            }
+        }
+
+        private void header(Reader reader) throws Underflow, JSONException {
+            int version = reader.u8();
+            int type = reader.u8();
+            if (version != VERSION) {
+                throw new JSONException("unknown version " + version);
+            }
+            if (type == TYPE_ACK) {
+                update.setMsgType("ack");
+                stage = DONE;
+            } else if (type == TYPE_UPDATE) {
+                long hash = reader.u32();
+                update.setMsgType("update");
+                update.setHash(hash);
+                stage = STATUS;
+            } else if (type == TYPE_DELTA) {
+                long base = reader.u32();
+                long hash = reader.u32();
+                update.setMsgType("delta");
+                update.setBase(base);
+                update.setHash(hash);
+                stage = STATUS;
+            } else {
+                throw new JSONException("not a status payload, type " + type);
+            }
+        }
+
+        private void status(Reader reader) throws Underflow, JSONException {
+            String name = reader.str();
+            String state = reader.enumValue(STATES);
+            String model = reader.enumValue(MODELS);
+            int count = reader.varint();
+            update.setName(name);
+            update.setState(state);
+            update.setModel(model);
+            if (count == 0) {
+                stage = DONE;
+                return;
+            }
+            progression = new JSONArray();
+            update.setProgression(progression);
+            elementsLeft = count - 1;
+            stage = (elementsLeft == 0 ? DONE : ELEMENTS);
+        }
+
+        private void element(Reader reader) throws Underflow, JSONException {
+            JSONObject element = new JSONObject();
+            element.put("msgid", reader.str());
+            element.put("content", reader.str());
+            int flags = reader.u8();
+            if ((flags & HAS_RESPONSES) != 0) {
+                JSONArray responses = new JSONArray();
+                int count = reader.varint();
+                for (int i = 0; i < count; i++) {
+                    JSONObject response = new JSONObject();
+                    response.put("id", reader.str());
+                    response.put("value", reader.str());
+                    responses.put(response);
+                }
+                element.put("responses", responses);
+            }
+            if ((flags & HAS_SELECTION) != 0) {
+                element.put("selection", reader.str());
+            }
+
+            progression.put(element);
+            if (--elementsLeft == 0) {
+                stage = DONE;
+            }
+        }
+
+        private void fail(String reason) {
+            error = reason + " at byte " + bytesFed;
+            stage = ERROR;
+        }
+
+        @Override
+        public RobotUpdate getUpdate() {
+            return (stage == DONE ? update : null);
+        }
+
+        @Override
+        public String getError() {
+            return (stage == ERROR ? error : (stage == DONE ? null : "payload ended early"));
+        }
+    }
+
+    /**
+     * thrown when an item needs more bytes than have arrived
+     */
+    private static class Underflow extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            // thrown at every packet boundary -> no stack trace
+            return this;
+        }
+    }
+
+    private static class Reader {
+        private final byte[] data;
+        private final int length;
+        private int position = 0;
+        private static final Underflow UNDERFLOW = new Underflow();
+
+        private Reader(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        private void need(int bytes) throws Underflow {
+            if (length - position < bytes) {
+                throw UNDERFLOW;
+            }
+        }
+
+        private int u8() throws Underflow {
+            need(1);
+            return data[position++] & 0xFF;
+        }
+
+        private long u32() throws Underflow {
+            need(4);
+            long value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | (data[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        private int varint() throws Underflow, JSONException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = u8();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new JSONException("bad varint");
+        }
+
+        private String str() throws Underflow, JSONException {
+            int bytes = varint();
+            if (bytes < 0 || bytes > MAX_STRING) {
+                throw new JSONException("bad string length " + bytes);
+            }
+            need(bytes);
+            String value = new String(data, position, bytes, StandardCharsets.UTF_8);
+            position += bytes;
+            return value;
+        }
+
+        private String enumValue(String[] values) throws Underflow, JSONException {
+            int index = u8();
+            if (index == OTHER) {
+                return str();
+            }
+            if (index >= values.length) {
+                throw new JSONException("unknown enum value " + index);
+            }
+            return values[index];
+        }
+    }
+
+    private static class Writer {
+        private byte[] data = new byte[64];
+        private int length = 0;
+
+        private void u8(int value) {
+            if (length == data.length) {
+                byte[] bigger = new byte[data.length * 2];
+                System.arraycopy(data, 0, bigger, 0, length);
+                data = bigger;
+            }
+            data[length++] = (byte) value;
+        }
+
+        private void u32(long value) {
+            u8((int) (value >> 24));
+            u8((int) (value >> 16));
+            u8((int) (value >> 8));
+            u8((int) value);
+        }
+
+        private void varint(int value) {
+            while ((value & ~0x7F) != 0) {
+                u8((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            u8(value);
+        }
+
+        private void str(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            for (byte b : bytes) {
+                u8(b);
+            }
+        }
+
+        private void enumValue(String[] values, String value) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i].equals(value)) {
+                    u8(i);
+                    return;
+                }
+            }
+            u8(OTHER);
+            str(value);
+        }
+
+        private byte[] toByteArray() {
+            byte[] result = new byte[length];
+            System.arraycopy(data, 0, result, 0, length);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package uml_robotics.robotnexus;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * hand-off of notification values between the binder thread and the reading thread
+ */
+public class NotificationRingTest {
+    private static final int SLOT_SIZE = 20;
+
+    private static byte[] value(int number) {
+        // lengths vary so a slot is never read past its own value
+        byte[] value = new byte[4 + number % 8];
+        value[0] = (byte) (number >> 24);
+        value[1] = (byte) (number >> 16);
+        value[2] = (byte) (number >> 8);
+        value[3] = (byte) number;
+        return value;
+    }
+
+    private static int number(byte[] value) {
+        return ((value[0] & 0xFF) << 24) | ((value[1] & 0xFF) << 16) | ((value[2] & 0xFF) << 8) | (value[3] & 0xFF);
+    }
+
+    @Test
+    public void consumerSeesEveryAcceptedValueInOrder() throws Exception {
+        final NotificationRing ring = new NotificationRing(8, SLOT_SIZE);
+        final int offers = 200000;
+        final boolean[] accepted = new boolean[offers];
+        final AtomicInteger failures = new AtomicInteger();
+        final int[] taken = new int[offers];
+        final int[] takenCount = {0};
+
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                byte[] into = new byte[ring.getSlotSize()];
+                int length;
+                // an empty value ends the stream
+                while ((length = ring.take(into)) > 0) {
+                    if (length != 4 + number(into) % 8) {
+                        failures.incrementAndGet();
+                    }
+                    taken[takenCount[0]++] = number(into);
+                }
+            }
+        };
+        consumer.start();
+
+        for (int i = 0; i < offers; i++) {
+            accepted[i] = ring.offer(value(i));
+        }
+        int endOffers = 1;
+        while (!ring.offer(new byte[0])) {
+            endOffers++;
+            Thread.yield();
+        }
+        consumer.join(10000);
+        assertFalse(consumer.isAlive());
+        assertEquals(0, failures.get());
+
+        int acceptedCount = 0;
+        for (int i = 0; i < offers; i++) {
+            if (accepted[i]) {
+                assertEquals(i, taken[acceptedCount++]);
+            }
+        }
+        assertEquals(acceptedCount, takenCount[0]);
+        // every refused value was an overrun
+        int offered = offers + endOffers;
+        assertTrue(ring.toString(), ring.toString().contains("offered: " + offered));
+        assertTrue(ring.toString(), ring.toString().contains("overruns: " + (offered - acceptedCount - 1)));
+    }
+
+    @Test
+    public void fullRingDropsAndCountsOverruns() throws Exception {
+        NotificationRing ring = new NotificationRing(3, SLOT_SIZE);
+        // rounded up to 4 slots
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(value(i)));
+        }
+        assertFalse(ring.offer(value(4)));
+        assertFalse(ring.offer(value(5)));
+        assertFalse(ring.offer(new byte[SLOT_SIZE + 1]));
+        assertTrue(ring.toString(), ring.toString().contains("overruns: 2, oversize: 1, peak depth: 4"));
+
+        // a taken value frees its slot
+        byte[] into = new byte[SLOT_SIZE];
+        assertEquals(4, ring.take(into));
+        assertEquals(0, number(into));
+        assertTrue(ring.offer(value(6)));
+
+        // clear drops what is waiting
+        ring.clear();
+        assertTrue(ring.offer(value(7)));
+        assertEquals(11, ring.take(into));
+        assertEquals(7, number(into));
+    }
+
+    @Test
+    public void closeWakesAParkedTake() throws Exception {
+        final NotificationRing ring = new NotificationRing(8, SLOT_SIZE);
+        final AtomicInteger result = new AtomicInteger(0);
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                result.set(ring.take(new byte[SLOT_SIZE]));
+            }
+        };
+        consumer.start();
+
+        // wait for the consumer to park
+        long deadline = System.currentTimeMillis() + 5000;
+        while (consumer.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.WAITING, consumer.getState());
+
+        ring.close();
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+        assertEquals(-1, result.get());
+        assertFalse(ring.offer(value(1)));
+    }
+}
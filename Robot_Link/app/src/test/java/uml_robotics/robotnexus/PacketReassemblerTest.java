@@ -0,0 +1,213 @@
+package uml_robotics.robotnexus;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * rebuilding lost packets from parity
+ */
+public class PacketReassemblerTest {
+    private static final int SLOT_SIZE = 20;
+    private static final int GROUP = SlidingWindow.PARITY_GROUP;
+
+    /**
+     * @return payload of totalPackets packets, the last one a few bytes short
+     */
+    private static byte[] payload(int totalPackets) {
+        byte[] payload = new byte[totalPackets * SLOT_SIZE - 7];
+        new Random(totalPackets).nextBytes(payload);
+        return payload;
+    }
+
+    private static int packetLength(byte[] payload, int index) {
+        return Math.min(SLOT_SIZE, payload.length - index * SLOT_SIZE);
+    }
+
+    /**
+     * @return xor of the packets of a group, zero padded to the slot size
+     */
+    private static byte[] parity(byte[] payload, int group) {
+        byte[] parity = new byte[SLOT_SIZE];
+        int totalPackets = (payload.length + SLOT_SIZE - 1) / SLOT_SIZE;
+        for (int i = group * GROUP; i < Math.min((group + 1) * GROUP, totalPackets); i++) {
+            for (int j = 0; j < packetLength(payload, i); j++) {
+                parity[j] ^= payload[i * SLOT_SIZE + j];
+            }
+        }
+        return parity;
+    }
+
+    private static long crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return crc.getValue();
+    }
+
+    /**
+     * streams every packet but the lost ones, each group followed by its parity
+     */
+    private static PacketReassembler stream(byte[] payload, int... lost) {
+        int totalPackets = (payload.length + SLOT_SIZE - 1) / SLOT_SIZE;
+        PacketReassembler reassembler = new PacketReassembler(totalPackets, SLOT_SIZE);
+        reassembler.protectWith(GROUP);
+        for (int i = 0; i < totalPackets; i++) {
+            boolean isLost = false;
+            for (int index : lost) {
+                isLost = isLost || index == i;
+            }
+            if (!isLost) {
+                reassembler.put(i, payload, i * SLOT_SIZE, packetLength(payload, i));
+            }
+            if (i % GROUP == GROUP - 1 || i == totalPackets - 1) {
+                int group = i / GROUP;
+                assertTrue(reassembler.putParity(group, parity(payload, group), 0, SLOT_SIZE));
+            }
+        }
+        return reassembler;
+    }
+
+    @Test
+    public void singleLossPerGroupIsRebuilt() throws Exception {
+        byte[] payload = payload(20);
+        PacketReassembler reassembler = stream(payload, 3, 8, 17);
+
+        assertTrue(reassembler.isComplete());
+        assertTrue(reassembler.isIntact());
+        assertEquals(3, reassembler.getRecoveredCount());
+        assertEquals(3, reassembler.getParityCount());
+        assertEquals(crc(payload), reassembler.getCrc());
+        assertEquals(payload.length, reassembler.getLength());
+    }
+
+    @Test
+    public void parityBeforeTheLastPacketOfItsGroupStillRebuilds() throws Exception {
+        byte[] payload = payload(8);
+        PacketReassembler reassembler = new PacketReassembler(8, SLOT_SIZE);
+        reassembler.protectWith(GROUP);
+        assertTrue(reassembler.putParity(0, parity(payload, 0), 0, SLOT_SIZE));
+        for (int i = 0; i < 8; i++) {
+            if (i != 2) {
+                reassembler.put(i, payload, i * SLOT_SIZE, packetLength(payload, i));
+            }
+        }
+
+        assertTrue(reassembler.isComplete());
+        assertEquals(crc(payload), reassembler.getCrc());
+    }
+
+    @Test
+    public void twoLossesInAGroupLeaveTheHoles() throws Exception {
+        byte[] payload = payload(20);
+        PacketReassembler reassembler = stream(payload, 2, 5);
+
+        assertFalse(reassembler.isComplete());
+        assertFalse(reassembler.isGroupComplete(0));
+        assertTrue(reassembler.isGroupComplete(1));
+        assertEquals(0, reassembler.getRecoveredCount());
+        assertEquals(2, reassembler.nextMissing(0));
+        assertEquals(5, reassembler.nextMissing(3));
+
+        // a repair of one fills the other from the parity
+        reassembler.put(2, payload, 2 * SLOT_SIZE, SLOT_SIZE);
+        assertTrue(reassembler.isComplete());
+        assertEquals(1, reassembler.getRecoveredCount());
+        assertEquals(crc(payload), reassembler.getCrc());
+    }
+
+    @Test
+    public void lostLastPacketIsLeftForTheAck() throws Exception {
+        byte[] payload = payload(20);
+        PacketReassembler reassembler = stream(payload, 19);
+
+        assertFalse(reassembler.isComplete());
+        assertEquals(19, reassembler.nextMissing(0));
+        assertEquals(0, reassembler.getRecoveredCount());
+    }
+
+    @Test
+    public void duplicateParityIsRefused() throws Exception {
+        PacketReassembler reassembler = new PacketReassembler(20, SLOT_SIZE);
+        reassembler.protectWith(GROUP);
+        byte[] parity = new byte[SLOT_SIZE];
+
+        assertTrue(reassembler.putParity(1, parity, 0, SLOT_SIZE));
+        assertFalse(reassembler.putParity(1, parity, 0, SLOT_SIZE));
+        assertFalse(reassembler.putParity(3, parity, 0, SLOT_SIZE));
+        assertEquals(1, reassembler.getParityCount());
+    }
+
+    @Test
+    public void shortPacketBeforeTheTrailerIsLeftForTheAck() throws Exception {
+        // packet 1 is short because the trailer starts a packet of its own
+        byte[] data = new byte[SLOT_SIZE + 10];
+        new Random(3).nextBytes(data);
+        long crc = crc(data);
+        byte[] trailer = {(byte) (crc >> 24), (byte) (crc >> 16), (byte) (crc >> 8), (byte) crc};
+        byte[] parity = new byte[SLOT_SIZE];
+        for (int j = 0; j < SLOT_SIZE; j++) {
+            parity[j] = (byte) (data[j] ^ (j < 10 ? data[SLOT_SIZE + j] : 0) ^ (j < 4 ? trailer[j] : 0));
+        }
+
+        PacketReassembler reassembler = new PacketReassembler(3, SLOT_SIZE);
+        reassembler.protectWith(GROUP);
+        reassembler.expectTrailer();
+        reassembler.put(0, data, 0, SLOT_SIZE);
+        reassembler.put(2, trailer, 0, trailer.length);
+        assertTrue(reassembler.putParity(0, parity, 0, SLOT_SIZE));
+
+        // a zero padded rebuild would be too long -> not rebuilt
+        assertEquals(0, reassembler.getRecoveredCount());
+        assertEquals(1, reassembler.nextMissing(0));
+
+        reassembler.put(1, data, SLOT_SIZE, 10);
+        assertTrue(reassembler.isIntact());
+        assertFalse(reassembler.hasTrailerMismatch());
+        assertEquals(crc, reassembler.getCrc());
+    }
+
+    /**
+     * @return text deflated with the preset dictionary
+     */
+    private static byte[] deflate(String text, String dictionary) {
+        Deflater deflater = new Deflater();
+        deflater.setDictionary(dictionary.getBytes(StandardCharsets.UTF_8));
+        deflater.setInput(text.getBytes(StandardCharsets.UTF_8));
+        deflater.finish();
+        byte[] out = new byte[256];
+        int length = deflater.deflate(out);
+        deflater.end();
+        byte[] stream = new byte[length];
+        System.arraycopy(out, 0, stream, 0, length);
+        return stream;
+    }
+
+    @Test
+    public void sameDictionaryInflates() throws Exception {
+        String text = "{\"msgtype\":\"update\",\"state\":\"ok\"}";
+        byte[] stream = deflate(text, "\"msgtype\":\"update\"");
+        PacketReassembler reassembler = new PacketReassembler(1, 256);
+        reassembler.inflateWith("\"msgtype\":\"update\"".getBytes(StandardCharsets.UTF_8));
+
+        assertTrue(reassembler.put(0, stream, 0, stream.length));
+        assertTrue(reassembler.isIntact());
+        assertEquals(text.length(), reassembler.getPlainLength());
+    }
+
+    @Test
+    public void otherDictionaryIsCorruptNotACrash() throws Exception {
+        byte[] stream = deflate("{\"msgtype\":\"update\",\"state\":\"ok\"}", "some other dictionary");
+        PacketReassembler reassembler = new PacketReassembler(1, 256);
+        reassembler.inflateWith("\"msgtype\":\"update\"".getBytes(StandardCharsets.UTF_8));
+
+        assertTrue(reassembler.put(0, stream, 0, stream.length));
+        assertTrue(reassembler.isComplete());
+        assertFalse(reassembler.isIntact());
+        assertFalse(reassembler.isResumable());
+    }
+}
@@ -0,0 +1,83 @@
+package uml_robotics.robotnexus;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * merging delta updates into a robot's progression
+ */
+public class RobotTest {
+
+    private static JSONObject element(String msgId, String content) throws Exception {
+        JSONObject element = new JSONObject();
+        if (msgId != null) {
+            element.put("msgid", msgId);
+        }
+        element.put("content", content);
+        return element;
+    }
+
+    private static Robot robot() throws Exception {
+        JSONArray progression = new JSONArray();
+        progression.put(element("1", "hello"));
+        progression.put(element(null, "no id"));
+        progression.put(element("2", "need help?"));
+        Robot robot = new Robot(-60, "AA:BB:CC:DD:EE:FF");
+        robot.setProgression(progression);
+        return robot;
+    }
+
+    @Test
+    public void changedElementIsReplacedInPlace() throws Exception {
+        Robot robot = robot();
+        JSONArray delta = new JSONArray();
+        delta.put(element("2", "answered"));
+
+        JSONArray merged = robot.mergeProgression(delta);
+        assertEquals(3, merged.length());
+        assertEquals("answered", merged.getJSONObject(2).getString("content"));
+        assertEquals("hello", merged.getJSONObject(0).getString("content"));
+        // the robot keeps its progression until the merged one is set
+        assertEquals("need help?", robot.getProgression().getJSONObject(2).getString("content"));
+    }
+
+    @Test
+    public void newElementsAreAppendedInOrder() throws Exception {
+        Robot robot = robot();
+        JSONArray delta = new JSONArray();
+        delta.put(element("3", "third"));
+        delta.put(element("1", "changed"));
+        delta.put(element("4", "fourth"));
+        delta.put(element("3", "third again"));
+
+        JSONArray merged = robot.mergeProgression(delta);
+        assertEquals(5, merged.length());
+        assertEquals("changed", merged.getJSONObject(0).getString("content"));
+        assertEquals("third again", merged.getJSONObject(3).getString("content"));
+        assertEquals("fourth", merged.getJSONObject(4).getString("content"));
+
+        robot.setProgression(merged);
+        assertEquals("4", robot.getLastMessageId());
+    }
+
+    @Test
+    public void elementsWithoutMsgidAreAlwaysAppended() throws Exception {
+        Robot robot = robot();
+        JSONArray delta = new JSONArray();
+        delta.put(element(null, "no id"));
+        delta.put("not an object");
+
+        JSONArray merged = robot.mergeProgression(delta);
+        assertEquals(5, merged.length());
+        assertEquals("no id", merged.getJSONObject(1).getString("content"));
+        assertEquals("no id", merged.getJSONObject(3).getString("content"));
+        assertEquals("not an object", merged.getString(4));
+
+        // newest element has no msgid -> nothing to sync from
+        robot.setProgression(merged);
+        assertNull(robot.getLastMessageId());
+    }
+}
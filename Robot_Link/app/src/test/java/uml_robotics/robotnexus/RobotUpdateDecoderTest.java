@@ -0,0 +1,123 @@
+package uml_robotics.robotnexus;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * push parsing of json payloads that arrive in arbitrary pieces
+ */
+public class RobotUpdateDecoderTest {
+    private static final String PAYLOAD = "{\"msgtype\":\"update\",\"name\":\"B\u00e9nder \\\"x\\\" \\ud83d\\ude00\","
+            + "\"state\":\"ok\",\"model\":\"bender\",\"progression\":[{\"msgid\":\"m1\",\"content\":"
+            + "\"h\u00e9llo \ud83d\ude00 \\u00e9\\n\",\"responses\":[{\"id\":\"1\",\"value\":\"yes\"}]}],"
+            + "\"hash\":4294967295}";
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * feeds the payload in pieces that end at each of the cuts
+     */
+    private static RobotUpdateDecoder decode(byte[] payload, int... cuts) {
+        RobotUpdateDecoder decoder = new RobotUpdateDecoder();
+        int start = 0;
+        for (int cut : cuts) {
+            decoder.feed(payload, start, cut - start);
+            start = cut;
+        }
+        decoder.feed(payload, start, payload.length - start);
+        return decoder;
+    }
+
+    private static void assertPayload(RobotUpdateDecoder decoder) throws Exception {
+        assertNull(decoder.getError());
+        RobotUpdate update = decoder.getUpdate();
+        assertNotNull(update);
+        assertEquals("update", update.getMsgType());
+        assertEquals("B\u00e9nder \"x\" \ud83d\ude00", update.getName());
+        assertEquals("ok", update.getState());
+        assertEquals("bender", update.getModel());
+        assertEquals(4294967295L, update.getHash());
+        JSONArray progression = update.getProgression();
+        assertEquals(1, progression.length());
+        assertEquals("h\u00e9llo \ud83d\ude00 \u00e9\n", progression.getJSONObject(0).getString("content"));
+        assertEquals("yes", progression.getJSONObject(0).getJSONArray("responses").getJSONObject(0).getString("value"));
+    }
+
+    @Test
+    public void splitAtEveryByte() throws Exception {
+        byte[] payload = bytes(PAYLOAD);
+        // cuts land inside escapes, \\u digits, surrogate pairs and multi-byte utf-8
+        for (int cut = 0; cut <= payload.length; cut++) {
+            assertPayload(decode(payload, cut));
+        }
+    }
+
+    @Test
+    public void oneByteAtATime() throws Exception {
+        byte[] payload = bytes(PAYLOAD);
+        int[] cuts = new int[payload.length - 1];
+        for (int i = 0; i < cuts.length; i++) {
+            cuts[i] = i + 1;
+        }
+        assertPayload(decode(payload, cuts));
+    }
+
+    @Test
+    public void numberAtTheEndOfThePayload() throws Exception {
+        byte[] payload = bytes("{\"hash\":12}");
+        RobotUpdateDecoder decoder = decode(payload, payload.length - 1);
+        assertEquals(12, decoder.getUpdate().getHash());
+
+        // a bare number only ends with the payload
+        decoder = decode(bytes("42"));
+        assertNull(decoder.getUpdate());
+        assertEquals("payload is not an object", decoder.getError());
+    }
+
+    @Test
+    public void rootThatIsNotAnObject() throws Exception {
+        RobotUpdateDecoder decoder = decode(bytes("[1]"));
+        assertNull(decoder.getUpdate());
+        assertEquals("payload is not an object", decoder.getError());
+    }
+
+    @Test
+    public void loneSurrogateEscapeIsReplaced() throws Exception {
+        RobotUpdateDecoder decoder = decode(bytes("{\"name\":\"a\\ud83db\"}"));
+        assertEquals("a\ufffdb", decoder.getUpdate().getName());
+    }
+
+    @Test
+    public void trailingCommasAreRejected() throws Exception {
+        RobotUpdateDecoder decoder = decode(bytes("{\"a\":1,}"));
+        assertNull(decoder.getUpdate());
+        assertEquals("expected a key at byte 7", decoder.getError());
+
+        decoder = decode(bytes("{\"a\":[1,]}"), 3);
+        assertNull(decoder.getUpdate());
+        assertEquals("unexpected ']' at byte 8", decoder.getError());
+    }
+
+    @Test
+    public void dataAfterThePayloadIsRejected() throws Exception {
+        RobotUpdateDecoder decoder = decode(bytes("{\"a\":1} x"));
+        assertNull(decoder.getUpdate());
+        assertEquals("data after the payload at byte 8", decoder.getError());
+
+        decoder = decode(bytes("{\"a\":1}x"), 7);
+        assertEquals("data after the payload at byte 7", decoder.getError());
+    }
+
+    @Test
+    public void truncatedPayload() throws Exception {
+        RobotUpdateDecoder decoder = decode(bytes("{\"name\":\"B\u00e9"));
+        assertNull(decoder.getUpdate());
+        assertEquals("payload ended early", decoder.getError());
+    }
+}
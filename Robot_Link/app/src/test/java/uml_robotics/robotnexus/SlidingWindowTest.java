@@ -0,0 +1,154 @@
+package uml_robotics.robotnexus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * acks of the sliding window transfer
+ */
+public class SlidingWindowTest {
+    private static final int SLOT_SIZE = 20;
+
+    /**
+     * @return reassembler that got every packet below received but the missing ones
+     */
+    private static PacketReassembler received(int totalPackets, int received, int... missing) {
+        PacketReassembler reassembler = new PacketReassembler(totalPackets, SLOT_SIZE);
+        byte[] packet = new byte[SLOT_SIZE];
+        for (int i = 0; i < received; i++) {
+            boolean isMissing = false;
+            for (int index : missing) {
+                isMissing = isMissing || index == i;
+            }
+            if (!isMissing) {
+                reassembler.put(i, packet, 0, SLOT_SIZE);
+            }
+        }
+        return reassembler;
+    }
+
+    /**
+     * @return true if the ack marks packet missing
+     */
+    private static boolean marked(byte[] ack, int cumulative, int packet) {
+        int bit = packet - cumulative - 1;
+        return (ack[3 + (bit >> 3)] & (0x80 >>> (bit & 7))) != 0;
+    }
+
+    @Test
+    public void ackLayout() throws Exception {
+        PacketReassembler reassembler = received(20, 12, 3, 5, 6, 11);
+        SlidingWindow window = new SlidingWindow();
+        for (int i = 0; i < 12; i++) {
+            window.arrived(i, false);
+        }
+
+        byte[] ack = window.buildAck(reassembler, false);
+        assertEquals(SlidingWindow.ACK_LENGTH, ack.length);
+        byte[] expected = new byte[SlidingWindow.ACK_LENGTH];
+        expected[0] = SlidingWindow.ACK_TYPE;
+        // cumulative ack 3, big endian
+        expected[1] = 0;
+        expected[2] = 3;
+        // packets 4-11 msb first -> 5, 6 and 11 missing. 12 on hasn't been sent yet
+        expected[3] = (byte) 0x61;
+        assertArrayEquals(expected, ack);
+    }
+
+    @Test
+    public void ackMarksNoMoreThanItsBitmapHolds() throws Exception {
+        // every other packet from 301 lost, 300 is the cumulative ack
+        int[] missing = new int[200];
+        for (int i = 0; i < missing.length; i++) {
+            missing[i] = 300 + 2 * i;
+        }
+        PacketReassembler reassembler = received(800, 700, missing);
+        SlidingWindow window = new SlidingWindow();
+        for (int i = 0; i < 700; i++) {
+            window.arrived(i, false);
+        }
+
+        byte[] ack = window.buildAck(reassembler, false);
+        assertEquals(300, ((ack[1] & 0xFF) << 8) | (ack[2] & 0xFF));
+        for (int packet = 301; packet <= 300 + (SlidingWindow.ACK_LENGTH - 3) * 8; packet++) {
+            assertEquals("packet " + packet, packet % 2 == 0, marked(ack, 300, packet));
+        }
+        // last byte is packets 429-436 -> 438 on wait for the next ack
+        assertEquals((byte) 0x55, ack[SlidingWindow.ACK_LENGTH - 1]);
+        assertFalse(reassembler.has(438));
+    }
+
+    @Test
+    public void parityClampsTheAckToGroupsWhoseParityIsIn() throws Exception {
+        int group = SlidingWindow.PARITY_GROUP;
+        PacketReassembler reassembler = received(40, 4 * group, 3, 4, group + 2, 2 * group + 1);
+        reassembler.protectWith(group);
+        SlidingWindow window = new SlidingWindow();
+        window.protect(group);
+        for (int i = 0; i < 4 * group; i++) {
+            window.arrived(i, false);
+        }
+        // two losses -> parity of group 0 can't fill them
+        assertTrue(window.parityArrived(0, false));
+        window.parityArrived(1, false);
+
+        byte[] ack = window.buildAck(reassembler, false);
+        assertEquals(3, ((ack[1] & 0xFF) << 8) | (ack[2] & 0xFF));
+        assertTrue(marked(ack, 3, 4));
+        assertTrue(marked(ack, 3, group + 2));
+        // parity of group 2 is still on its way -> its hole may be rebuilt yet
+        assertFalse(marked(ack, 3, 2 * group + 1));
+
+        // the robot went quiet -> no parity is coming, ask for everything
+        ack = window.buildAck(reassembler, true);
+        assertTrue(marked(ack, 3, 2 * group + 1));
+    }
+
+    @Test
+    public void resumeRequestLayout() throws Exception {
+        // 0-4, 6, 9 and 20 of 40 arrived before the disconnect
+        PacketReassembler reassembler = received(40, 21, 5, 7, 8, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19);
+
+        assertEquals(21, SlidingWindow.getResumeEnd(reassembler, 20));
+        byte[] request = SlidingWindow.buildResume(reassembler, 0x89ABCDEFL, 20);
+        assertArrayEquals(new byte[]{SlidingWindow.RESUME_TYPE,
+                (byte) 0x89, (byte) 0xAB, (byte) 0xCD, (byte) 0xEF, // hash
+                0, 40, // total
+                0, 5, // cumulative
+                0, 21, // end
+                // packets 6-13 then 14-20, 1 -> missing
+                (byte) 0x6F, (byte) 0xFC}, request);
+    }
+
+    @Test
+    public void resumeRequestEndsWhereItsBitmapDoes() throws Exception {
+        PacketReassembler reassembler = received(40, 21, 5, 7, 8, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19);
+
+        // room for one bitmap byte -> packets 6-13, the robot streams fresh from 14
+        assertEquals(14, SlidingWindow.getResumeEnd(reassembler, 12));
+        byte[] request = SlidingWindow.buildResume(reassembler, 0x89ABCDEFL, 12);
+        assertEquals(12, request.length);
+        assertEquals(14, ((request[9] & 0xFF) << 8) | (request[10] & 0xFF));
+        assertEquals((byte) 0x6F, request[11]);
+
+        // nothing past the cumulative ack -> no bitmap
+        reassembler = received(40, 6);
+        request = SlidingWindow.buildResume(reassembler, 1, 20);
+        assertEquals(11, request.length);
+        assertEquals(6, ((request[7] & 0xFF) << 8) | (request[8] & 0xFF));
+        assertEquals(6, ((request[9] & 0xFF) << 8) | (request[10] & 0xFF));
+    }
+
+    @Test
+    public void withoutParityASkippedPacketAcksAtOnce() throws Exception {
+        SlidingWindow window = new SlidingWindow();
+        assertFalse(window.arrived(0, false));
+        assertTrue(window.arrived(2, false));
+
+        window = new SlidingWindow();
+        window.protect(SlidingWindow.PARITY_GROUP);
+        assertFalse(window.arrived(0, false));
+        assertFalse(window.arrived(2, false));
+    }
+}
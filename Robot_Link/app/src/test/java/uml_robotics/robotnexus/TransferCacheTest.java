@@ -0,0 +1,116 @@
+package uml_robotics.robotnexus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * keeping transfers a disconnect cut short until the robot is back
+ */
+public class TransferCacheTest {
+    private static final long HASH = 0xCAFEL;
+    private static final long BASE = 0xBEEFL;
+    private static final int CAPABILITIES = 0x21;
+    private static final int PACKET_SIZE = 180;
+
+    /**
+     * cache whose clock only moves when the test says so
+     */
+    private static class Cache extends TransferCache {
+        private long time = 1000;
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+
+    /**
+     * @return a kept transfer whose reassembler can be told apart once released
+     */
+    private static TransferCache.Transfer transfer() {
+        PacketReassembler reassembler = new PacketReassembler(10, PACKET_SIZE - SlidingWindow.HEADER_SIZE);
+        reassembler.inflateWith(null);
+        return new TransferCache.Transfer(HASH, BASE, CAPABILITIES, PACKET_SIZE, reassembler, null);
+    }
+
+    private static boolean isReleased(TransferCache.Transfer transfer) {
+        return !transfer.getReassembler().isResumable();
+    }
+
+    @Test
+    public void sameRobotAndLinkGetTheTransferBackOnce() throws Exception {
+        Cache cache = new Cache();
+        TransferCache.Transfer transfer = transfer();
+        cache.retain("A", transfer);
+
+        assertNull(cache.take("B", HASH, BASE, CAPABILITIES, PACKET_SIZE));
+        assertSame(transfer, cache.take("A", HASH, BASE, CAPABILITIES, PACKET_SIZE));
+        assertFalse(isReleased(transfer));
+        assertNull(cache.take("A", HASH, BASE, CAPABILITIES, PACKET_SIZE));
+    }
+
+    @Test
+    public void transferExpiresAfterRetainMillis() throws Exception {
+        Cache cache = new Cache();
+        TransferCache.Transfer transfer = transfer();
+        cache.retain("A", transfer);
+
+        cache.time += TransferCache.RETAIN_MILLIS;
+        assertFalse(isReleased(transfer));
+        cache.time++;
+        assertNull(cache.take("A", HASH, BASE, CAPABILITIES, PACKET_SIZE));
+        assertTrue(isReleased(transfer));
+        assertTrue(cache.toString(), cache.toString().contains("expired: 1"));
+    }
+
+    @Test
+    public void oldestTransferGoesFirst() throws Exception {
+        Cache cache = new Cache();
+        TransferCache.Transfer[] transfers = new TransferCache.Transfer[5];
+        for (int i = 0; i < transfers.length; i++) {
+            transfers[i] = transfer();
+            cache.retain("robot " + i, transfers[i]);
+            cache.time++;
+        }
+
+        assertTrue(isReleased(transfers[0]));
+        assertNull(cache.take("robot 0", HASH, BASE, CAPABILITIES, PACKET_SIZE));
+        for (int i = 1; i < transfers.length; i++) {
+            assertSame(transfers[i], cache.take("robot " + i, HASH, BASE, CAPABILITIES, PACKET_SIZE));
+        }
+    }
+
+    @Test
+    public void newerTransferOfARobotReplacesItsOldOne() throws Exception {
+        Cache cache = new Cache();
+        TransferCache.Transfer first = transfer();
+        TransferCache.Transfer second = transfer();
+        cache.retain("A", first);
+        cache.retain("A", second);
+
+        assertTrue(isReleased(first));
+        assertSame(second, cache.take("A", HASH, BASE, CAPABILITIES, PACKET_SIZE));
+    }
+
+    @Test
+    public void anyMismatchReleasesTheTransfer() throws Exception {
+        long[][] taken = {
+                {HASH + 1, BASE, CAPABILITIES, PACKET_SIZE},
+                {HASH, -1, CAPABILITIES, PACKET_SIZE},
+                {HASH, BASE, CAPABILITIES | 0x02, PACKET_SIZE},
+                {HASH, BASE, CAPABILITIES, PACKET_SIZE - 1},
+        };
+        for (long[] with : taken) {
+            Cache cache = new Cache();
+            TransferCache.Transfer transfer = transfer();
+            cache.retain("A", transfer);
+
+            assertNull(cache.take("A", with[0], with[1], (int) with[2], (int) with[3]));
+            assertTrue(isReleased(transfer));
+            assertTrue(cache.toString(), cache.toString().contains("mismatched: 1"));
+            // gone for good
+            assertNull(cache.take("A", HASH, BASE, CAPABILITIES, PACKET_SIZE));
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package uml_robotics.robotnexus;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * binary payloads and replies, encoded and decoded again
+ */
+public class WireFormatTest {
+
+    /**
+     * @return update with a long element so str lengths and the element count take several varint
+     * bytes, and with a state and model that aren't in the enum lists
+     */
+    private static RobotUpdate update(String msgType) throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            content.append((char) ('a' + i % 26));
+        }
+        content.append(" \u00e9\ud83d\ude00");
+
+        JSONArray progression = new JSONArray();
+        for (int i = 0; i < 130; i++) {
+            JSONObject element = new JSONObject();
+            element.put("msgid", "m" + i);
+            element.put("content", (i == 0 ? content.toString() : "step " + i));
+            if (i % 3 == 1) {
+                JSONArray responses = new JSONArray();
+                responses.put(new JSONObject().put("id", "1").put("value", "yes"));
+                responses.put(new JSONObject().put("id", "2").put("value", "no"));
+                element.put("responses", responses);
+            }
+            if (i % 3 == 2) {
+                element.put("selection", "2");
+            }
+            progression.put(element);
+        }
+
+        RobotUpdate update = new RobotUpdate();
+        update.setMsgType(msgType);
+        update.setName("Bender");
+        update.setState("sleeping");
+        update.setModel("roomba");
+        update.setHash(0xFEDCBA98L);
+        if (msgType.equals("delta")) {
+            update.setBase(0x01234567L);
+        }
+        update.setProgression(progression);
+        return update;
+    }
+
+    /**
+     * feeds the message in two pieces split at cut
+     */
+    private static WireFormat.Decoder decode(byte[] message, int cut) {
+        WireFormat.Decoder decoder = new WireFormat.Decoder();
+        decoder.feed(message, 0, cut);
+        decoder.feed(message, cut, message.length - cut);
+        return decoder;
+    }
+
+    private static void assertSame(RobotUpdate expected, RobotUpdate actual) throws JSONException {
+        assertNotNull(actual);
+        assertEquals(expected.getMsgType(), actual.getMsgType());
+        assertEquals(expected.getHash(), actual.getHash());
+        assertEquals(expected.isDelta(), actual.isDelta());
+        if (expected.isDelta()) {
+            assertEquals(expected.getBase(), actual.getBase());
+        }
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getState(), actual.getState());
+        assertEquals(expected.getModel(), actual.getModel());
+        assertEquals(expected.getProgression().toString(), actual.getProgression().toString());
+    }
+
+    @Test
+    public void updateSplitAtEveryByte() throws Exception {
+        RobotUpdate update = update("update");
+        byte[] message = WireFormat.encodeUpdate(update);
+        for (int cut = 0; cut <= message.length; cut++) {
+            WireFormat.Decoder decoder = decode(message, cut);
+            assertNull(decoder.getError());
+            assertSame(update, decoder.getUpdate());
+        }
+    }
+
+    @Test
+    public void deltaSplitAtEveryByte() throws Exception {
+        RobotUpdate update = update("delta");
+        byte[] message = WireFormat.encodeUpdate(update);
+        for (int cut = 0; cut <= message.length; cut++) {
+            assertSame(update, decode(message, cut).getUpdate());
+        }
+    }
+
+    @Test
+    public void oneByteAtATime() throws Exception {
+        RobotUpdate update = update("update");
+        byte[] message = WireFormat.encodeUpdate(update);
+        WireFormat.Decoder decoder = new WireFormat.Decoder();
+        for (int i = 0; i < message.length; i++) {
+            assertNull(decoder.getUpdate());
+            decoder.feed(message, i, 1);
+        }
+        assertSame(update, decoder.getUpdate());
+    }
+
+    @Test
+    public void statusWithoutProgression() throws Exception {
+        RobotUpdate update = new RobotUpdate();
+        update.setMsgType("update");
+        update.setName("Eva");
+        update.setState("help");
+        update.setModel("eva");
+        update.setHash(7);
+        RobotUpdate decoded = decode(WireFormat.encodeUpdate(update), 3).getUpdate();
+        assertEquals("help", decoded.getState());
+        assertEquals("eva", decoded.getModel());
+        assertNull(decoded.getProgression());
+    }
+
+    @Test
+    public void ack() throws Exception {
+        RobotUpdate update = new RobotUpdate();
+        update.setMsgType("ack");
+        byte[] message = WireFormat.encodeUpdate(update);
+        assertEquals(2, message.length);
+        assertTrue(decode(message, 1).getUpdate().isAck());
+    }
+
+    @Test
+    public void reply() throws Exception {
+        byte[] message = WireFormat.encodeReply("m\u00e9ssage 7", "2");
+        String[] reply = WireFormat.decodeReply(message);
+        assertEquals("m\u00e9ssage 7", reply[0]);
+        assertEquals("2", reply[1]);
+        // a reply is not a status payload
+        assertEquals("not a status payload, type 3 at byte " + message.length,
+                decode(message, message.length).getError());
+    }
+
+    @Test(expected = JSONException.class)
+    public void replyThatEndsEarly() throws Exception {
+        byte[] message = WireFormat.encodeReply("message", "2");
+        byte[] cut = new byte[message.length - 1];
+        System.arraycopy(message, 0, cut, 0, cut.length);
+        WireFormat.decodeReply(cut);
+    }
+
+    @Test
+    public void brokenPayloads() throws Exception {
+        byte[] message = WireFormat.encodeUpdate(update("update"));
+
+        // cut short
+        WireFormat.Decoder decoder = new WireFormat.Decoder();
+        decoder.feed(message, 0, message.length - 1);
+        assertNull(decoder.getUpdate());
+        assertEquals("payload ended early", decoder.getError());
+
+        // one byte too many
+        decoder.feed(message, message.length - 1, 1);
+        decoder.feed(new byte[1], 0, 1);
+        assertNull(decoder.getUpdate());
+        assertEquals("data after the payload at byte " + message.length, decoder.getError());
+
+        // enum index past the list
+        RobotUpdate update = new RobotUpdate();
+        update.setMsgType("update");
+        update.setName("Eva");
+        update.setState("ok");
+        update.setModel("eva");
+        update.setHash(7);
+        message = WireFormat.encodeUpdate(update);
+        // version, type, hash, name -> state
+        message[10] = 9;
+        assertEquals("unknown enum value 9 at byte " + message.length,
+                decode(message, message.length).getError());
+    }
+}